@@ -0,0 +1,88 @@
+package uk.ac.cam.cl.bdt29;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+public class Benchmark {
+    // Renders scenes with each integrator and precision and compares how long each takes against the first, then renders
+    // them again with the tiles in each order. Rays per second counts every ray intersected with the scene, camera,
+    // reflected, refracted and shadow rays alike. Cache miss rates aren't visible from Java, run this under perf stat
+    // with the cache-misses events to see those
+
+    // The competition scene is by far the heaviest, and needs a larger heap than the JVM's default (-Xmx4g)
+    private static final String[] DEFAULT_SCENES = {"scenes/cone.xml", "scenes/test1.xml", "scenes/test2.xml",
+            "scenes/rendering_competition.xml"};
+
+    // The integrator and precision of each configuration timed
+    private static final String[] INTEGRATORS = {"recursive", "wavefront", "recursive"};
+    private static final Precision[] PRECISIONS = {Precision.DOUBLE, Precision.DOUBLE, Precision.FLOAT};
+
+    private static final int DEFAULT_WIDTH_PX = 320;
+    private static final int DEFAULT_HEIGHT_PX = 180;
+
+    // The warm up render is this many times smaller in each direction
+    private static final int WARMUP_DIVISOR = 4;
+
+    public static void main(String[] args) {
+        // USAGE: Benchmark [WIDTHxHEIGHT [SCENE...]]
+        int width = DEFAULT_WIDTH_PX, height = DEFAULT_HEIGHT_PX;
+        if (args.length > 0) {
+            String[] resolution = args[0].split("x");
+            width = Integer.parseInt(resolution[0]);
+            height = Integer.parseInt(resolution[1]);
+        }
+        String[] scenes = args.length > 1 ? Arrays.copyOfRange(args, 1, args.length) : DEFAULT_SCENES;
+
+        for (String sceneFile : scenes) {
+            double[] seconds = new double[INTEGRATORS.length];
+            for (int i = 0; i < INTEGRATORS.length; i++) {
+                RaycastHit.Scene scene = new SceneLoader(sceneFile, PRECISIONS[i]).getScene();
+                Renderer renderer = Main.createRenderer(INTEGRATORS[i], width, height, Main.DEFAULT_BOUNCES);
+
+                double[] result = time(scene, renderer, INTEGRATORS[i], PRECISIONS[i], width, height);
+                seconds[i] = result[0];
+                System.out.printf("%s %s %s: %.2fs, %.0f pixels/s, %.2f Mrays/s, %.2fx\n", sceneFile, INTEGRATORS[i],
+                        PRECISIONS[i].name().toLowerCase(), seconds[i], width * height / seconds[i], result[1] / 1e6,
+                        seconds[0] / seconds[i]);
+            }
+
+            RaycastHit.Scene scene = new SceneLoader(sceneFile, Precision.DOUBLE).getScene();
+            double scanlineSeconds = 0;
+            for (TileOrder order : TileOrder.values()) {
+                Renderer renderer = Main.createRenderer("recursive", width, height, Main.DEFAULT_BOUNCES);
+                renderer.setTileOrder(order);
+
+                double[] result = time(scene, renderer, "recursive", Precision.DOUBLE, width, height);
+                if (order == TileOrder.SCANLINE) {
+                    scanlineSeconds = result[0];
+                }
+                System.out.printf("%s %s tiles of %d on %d threads: %.2fs, %.2f Mrays/s, %.2fx\n", sceneFile,
+                        order.name().toLowerCase(), renderer.chooseTileSize(scene), renderer.threadCount, result[0],
+                        result[1] / 1e6, scanlineSeconds / result[0]);
+            }
+        }
+    }
+
+    // The seconds renderer takes to render scene after a warm up, and the rays per second it traced
+    private static double[] time(RaycastHit.Scene scene, Renderer renderer, String integrator, Precision precision, int width, int height) {
+        PrintStream out = System.out;
+        renderer.setBackgroundColour(scene.getBackgroundColour());
+        renderer.setPrecision(precision);
+
+        // the renderers report their progress, which would swamp the results
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        // a small render first so that every configuration is timed after the JIT has compiled its code
+        Renderer warmup = Main.createRenderer(integrator, width / WARMUP_DIVISOR, height / WARMUP_DIVISOR, Main.DEFAULT_BOUNCES);
+        warmup.setPrecision(precision);
+        warmup.render(scene);
+
+        long rays = scene.getRaysCast();
+        long start = System.nanoTime();
+        renderer.render(scene);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        rays = scene.getRaysCast() - rays;
+        System.setOut(out);
+        return new double[]{seconds, rays / seconds};
+    }
+}
@@ -1,12 +1,14 @@
 package uk.ac.cam.cl.bdt29;
 
-import uk.ac.cam.cl.bdt29.data_structures.SquareMatrix3;
+import uk.ac.cam.cl.bdt29.data_structures.Transform;
 import uk.ac.cam.cl.bdt29.data_structures.Vector3;
 
+import java.util.concurrent.ThreadLocalRandom;
+
 public class Camera {
 
     public Vector3 origin;
-    public SquareMatrix3 rotationMatrix;
+    public Transform rotation;
 
     //Dimensions of image plane in pixels (px) - i.e. screen units
     private int width_px, height_px;
@@ -23,11 +25,27 @@ public class Camera {
     // The distance in world units between each screen-space pixel
     private double x_step_m, y_step_m;
 
-    public Camera(int width, int height, Vector3 origin, Vector3 rotation) {
+    // The diameter of the lens in world units, 0 for a pinhole camera, and the distance in front of it that is in focus
+    private final double aperture;
+    private final double focusDistance;
+
+    // Half a unit along the camera's own right and up directions, for placing points on the lens
+    private Vector3 lensRight, lensUp;
+
+    // The direction through pixel (0, 0) and how it changes from one column and one row to the next, already rotated.
+    // The directions made from them aren't normalised, they are all exactly one unit forward as the steps are sideways
+    private Vector3 cornerDirection, columnStep, rowStep;
+
+    public static final double DEFAULT_APERTURE = 0.045;
+    public static final double DEFAULT_FOCUS_DISTANCE = 3.85;
+
+    public Camera(int width, int height, Vector3 origin, Vector3 rotation, double aperture, double focusDistance) {
         this.width_px = width;
         this.height_px = height;
         this.origin = origin;
-        this.rotationMatrix = this.FindRotationMatrix(rotation);
+        this.rotation = Transform.rotation(rotation);
+        this.aperture = aperture;
+        this.focusDistance = focusDistance;
 
         this.aspectRatio = ((double) width) / ((double) height);
 
@@ -36,59 +54,86 @@ public class Camera {
 
         this.x_step_m = this.width_m / this.width_px;
         this.y_step_m = this.height_m / this.height_px;
+
+        this.cornerDirection = this.rotation.applyToVector(new Vector3((x_step_m - width_m) / 2, (y_step_m + height_m) / 2, 1));
+        this.columnStep = this.rotation.applyToVector(new Vector3(x_step_m, 0, 0));
+        this.rowStep = this.rotation.applyToVector(new Vector3(0, -y_step_m, 0));
+
+        this.lensRight = this.rotation.applyToVector(new Vector3(aperture / 2, 0, 0));
+        this.lensUp = this.rotation.applyToVector(new Vector3(0, aperture / 2, 0));
+    }
+
+    // Whether every ray for a pixel would be the same, so only the one through the centre of the lens needs tracing
+    public boolean isPinhole() {
+        return aperture <= 0;
     }
 
-    private SquareMatrix3 FindRotationMatrix(Vector3 rotation) {
-        double deg_to_rad = (2*Math.PI)/360;
-        double cosThetaX = Math.cos(rotation.x * deg_to_rad);
-        double sinThetaX = Math.sin(rotation.x * deg_to_rad);
-        double cosThetaY = Math.cos(rotation.y * deg_to_rad);
-        double sinThetaY = Math.sin(rotation.y * deg_to_rad);
-        double cosThetaZ = Math.cos(rotation.z * deg_to_rad);
-        double sinThetaZ = Math.sin(rotation.z * deg_to_rad);
-
-
-        double[][] rotX = {
-                {1,0,0},
-                {0,cosThetaX,-sinThetaX},
-                {0,sinThetaX,cosThetaX},
-        };
-        double[][] rotY = {
-                {cosThetaY,0,sinThetaY},
-                {0,1,0},
-                {-sinThetaY,0,cosThetaY},
-        };
-        double[][] rotZ = {
-                {cosThetaZ,-sinThetaZ,0},
-                {sinThetaZ,cosThetaZ,0},
-                {0,0,1},
-        };
-        SquareMatrix3 RX = new SquareMatrix3(rotX);
-        SquareMatrix3 RY = new SquareMatrix3(rotY);
-        SquareMatrix3 RZ = new SquareMatrix3(rotZ);
-
-        // as a convention we will first rotate X, then Y, then Z
-        SquareMatrix3 rotMatrix = RZ.multiply(RY).multiply(RX);
-
-        return rotMatrix;
+    /*
+     * A random point on the lens, uniformly over the disk. Taking the square root of the radius stops the points bunching
+     * in the middle, and the disk is turned with the camera so the blur doesn't depend on which way it points
+     */
+    public Vector3 sampleLens() {
+        double r = Math.sqrt(ThreadLocalRandom.current().nextDouble());
+        double theta = 2 * Math.PI * ThreadLocalRandom.current().nextDouble();
+        double u = r * Math.cos(theta);
+        double v = r * Math.sin(theta);
+        return new Vector3(
+                origin.x + u * lensRight.x + v * lensUp.x,
+                origin.y + u * lensRight.y + v * lensUp.y,
+                origin.z + u * lensRight.z + v * lensUp.z);
     }
 
-    private static double START_REFRACTIVE_INDEX = 1;
+    public static final double START_REFRACTIVE_INDEX = 1;
 
     // Casts a ray through a supplied pixel coordinate
     public Ray castRay(int x, int y) {
-        double x_pos = (x_step_m - width_m) / 2 + x * x_step_m;
-        double y_pos = (y_step_m + height_m) / 2 - y * y_step_m;
-        // rotate the direction
-        Vector3 direction = new Vector3(x_pos, y_pos, 1).normalised();
-        // it should still be normalised, but we will renormalise because of floating point errors
-        Vector3 rotatedDirection = this.rotationMatrix.leftMultiplyVector(direction).normalised();
-
-        return new Ray(this.origin, rotatedDirection, START_REFRACTIVE_INDEX);
+        return new Ray(this.origin, directionThrough(x, y).normalised(), START_REFRACTIVE_INDEX);
     }
 
-    public SquareMatrix3 getRotationMatrix() {
-        return this.rotationMatrix;
+    // The direction through (x, y), which can be anywhere in the image rather than only at pixel centres. It is one unit
+    // forward but not normalised
+    public Vector3 directionThrough(double x, double y) {
+        return new Vector3(
+                cornerDirection.x + x * columnStep.x + y * rowStep.x,
+                cornerDirection.y + x * columnStep.y + y * rowStep.y,
+                cornerDirection.z + x * columnStep.z + y * rowStep.z);
+    }
+
+    // Where a ray from the camera origin along a direction from directionThrough meets the focal plane
+    public Vector3 focusAlong(Vector3 direction) {
+        return origin.add(direction.scale(focusDistance));
     }
-}
 
+    /*
+     * Fill buffer with the rays for the pixels from (x0, y0) up to but not including (x1, y1). The focal plane faces the
+     * camera focusDistance in front of it, and as every unnormalised direction is one unit forward the ray through a pixel
+     * meets it at origin + focusDistance * direction
+     */
+    public void fillRays(int x0, int y0, int x1, int y1, CameraRayBuffer buffer) {
+        buffer.reset(x0, y0, x1, y1);
+        int i = 0;
+        for (int y = y0; y < y1; y++) {
+            double rowX = cornerDirection.x + y * rowStep.x;
+            double rowY = cornerDirection.y + y * rowStep.y;
+            double rowZ = cornerDirection.z + y * rowStep.z;
+            for (int x = x0; x < x1; x++, i++) {
+                double dx = rowX + x * columnStep.x;
+                double dy = rowY + x * columnStep.y;
+                double dz = rowZ + x * columnStep.z;
+
+                double invLength = 1 / Math.sqrt(dx * dx + dy * dy + dz * dz);
+                buffer.directionX[i] = dx * invLength;
+                buffer.directionY[i] = dy * invLength;
+                buffer.directionZ[i] = dz * invLength;
+
+                buffer.focusX[i] = origin.x + focusDistance * dx;
+                buffer.focusY[i] = origin.y + focusDistance * dy;
+                buffer.focusZ[i] = origin.z + focusDistance * dz;
+            }
+        }
+    }
+
+    public Transform getRotation() {
+        return this.rotation;
+    }
+}
@@ -0,0 +1,48 @@
+package uk.ac.cam.cl.bdt29;
+
+public class CameraRayBuffer {
+    // The camera rays for a rectangle of pixels, filled in one go by Camera.fillRays and stored as structure-of-arrays.
+    // Entry i is the pixel (x0 + i % width, y0 + i / width). A renderer keeps one and refills it for each tile
+
+    // The normalised direction of the ray through the centre of the aperture
+    public double[] directionX, directionY, directionZ;
+
+    // Where that ray meets the focal plane, which every aperture ray for the pixel passes through
+    public double[] focusX, focusY, focusZ;
+
+    // The pixels held, as filled
+    private int x0, y0, width, size;
+
+    public CameraRayBuffer(int capacity) {
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        directionX = new double[capacity];
+        directionY = new double[capacity];
+        directionZ = new double[capacity];
+        focusX = new double[capacity];
+        focusY = new double[capacity];
+        focusZ = new double[capacity];
+    }
+
+    // Make room for the pixels from (x0, y0) up to but not including (x1, y1), growing the arrays if they are too small
+    void reset(int x0, int y0, int x1, int y1) {
+        this.x0 = x0;
+        this.y0 = y0;
+        this.width = x1 - x0;
+        this.size = width * (y1 - y0);
+        if (size > directionX.length) {
+            allocate(size);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // The index of pixel (x, y), which must be inside the filled rectangle
+    public int indexOf(int x, int y) {
+        return (y - y0) * width + (x - x0);
+    }
+}
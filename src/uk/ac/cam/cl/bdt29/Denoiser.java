@@ -0,0 +1,161 @@
+package uk.ac.cam.cl.bdt29;
+
+import java.util.stream.IntStream;
+
+public class Denoiser {
+    /*
+     * An edge-avoiding a-trous wavelet filter (Dammertz et al., 2010). Each pass blurs with a 5x5 B3 spline kernel whose taps
+     * are spread twice as far apart as the last pass's, so five passes reach 61 pixels across for the cost of 125 taps.
+     * A tap is weighted down where the normal, depth or colour differs from the centre pixel's, so the blur stops at edges.
+     * The colour is divided by the albedo first, so textures stay sharp and only the lighting is smoothed.
+     * Bands of rows are filtered in parallel
+     */
+
+    private static final int PASSES = 5;
+    private static final float[] KERNEL = {1 / 16f, 1 / 4f, 3 / 8f, 1 / 4f, 1 / 16f};
+
+    // How far apart lighting can be, relative to the centre pixel's, before a tap is ignored. It halves every pass, as
+    // each pass leaves less noise to remove
+    private static final float COLOUR_SIGMA = 1f;
+    // The cosine between normals is squared this many times, so raised to the power 64, higher keeps creases sharper
+    private static final int NORMAL_SQUARINGS = 6;
+    // How far apart depths can be, relative to the centre pixel's depth and per pixel of distance between them
+    private static final float DEPTH_SIGMA = 0.02f;
+
+    // Albedos below this are treated as this, so black surfaces don't divide by zero
+    private static final float MIN_ALBEDO = 0.01f;
+
+    private static final int BAND_HEIGHT = 16;
+
+    // One over how many steps apart each tap is from the centre, whose own entry is never used
+    private static final float[][] INVERSE_DISTANCE = new float[5][5];
+
+    static {
+        for (int j = -2; j <= 2; j++) {
+            for (int i = -2; i <= 2; i++) {
+                INVERSE_DISTANCE[j + 2][i + 2] = (float) (1 / Math.sqrt(Math.max(1, i * i + j * j)));
+            }
+        }
+    }
+
+    /*
+     * The denoised linear colour of every pixel of frame, three floats a pixel row by row. Pixels that haven't been traced
+     * are NaN in the result and are never used as taps
+     */
+    public static float[] denoise(FrameBuffer frame) {
+        int width = frame.getWidth(), height = frame.getHeight();
+        int pixels = width * height;
+
+        // demodulate
+        float[] lighting = new float[3 * pixels];
+        for (int i = 0; i < pixels; i++) {
+            for (int c = 0; c < 3; c++) {
+                lighting[3 * i + c] = frame.colour(i, c) / Math.max(MIN_ALBEDO, frame.albedo(i, c));
+            }
+        }
+
+        float[] filtered = new float[3 * pixels];
+        for (int pass = 0; pass < PASSES; pass++) {
+            int step = 1 << pass;
+            float colourSigma = COLOUR_SIGMA / step;
+            float[] in = lighting, out = filtered;
+            IntStream.range(0, (height + BAND_HEIGHT - 1) / BAND_HEIGHT).parallel().forEach(band ->
+                    filterBand(frame, in, out, band * BAND_HEIGHT, Math.min(height, (band + 1) * BAND_HEIGHT), step, colourSigma));
+            filtered = lighting;
+            lighting = out;
+        }
+
+        // remodulate
+        for (int i = 0; i < pixels; i++) {
+            for (int c = 0; c < 3; c++) {
+                lighting[3 * i + c] *= Math.max(MIN_ALBEDO, frame.albedo(i, c));
+            }
+        }
+        return lighting;
+    }
+
+    private static void filterBand(FrameBuffer frame, float[] in, float[] out, int y0, int y1, int step, float colourSigma) {
+        int width = frame.getWidth(), height = frame.getHeight();
+        float invColourSigmaSquared = 1 / (colourSigma * colourSigma);
+        for (int y = y0; y < y1; y++) {
+            for (int x = 0; x < width; x++) {
+                int p = y * width + x;
+                float r = in[3 * p], g = in[3 * p + 1], b = in[3 * p + 2];
+                if (Float.isNaN(r)) {
+                    out[3 * p] = out[3 * p + 1] = out[3 * p + 2] = Float.NaN;
+                    continue;
+                }
+                float nx = frame.normal(p, 0), ny = frame.normal(p, 1), nz = frame.normal(p, 2);
+                float depth = frame.depth(p);
+                // differences are measured against the pixel's own brightness, so dark and bright areas blur alike
+                float brightness = 0.2126f * r + 0.7152f * g + 0.0722f * b;
+                float invScale = invColourSigmaSquared / (brightness * brightness + 1e-4f);
+                float invDepthScale = 1 / (DEPTH_SIGMA * depth * step);
+
+                float sumR = 0, sumG = 0, sumB = 0, sumWeight = 0;
+                for (int j = -2; j <= 2; j++) {
+                    int qy = y + j * step;
+                    if (qy < 0 || qy >= height) {
+                        continue;
+                    }
+                    for (int i = -2; i <= 2; i++) {
+                        int qx = x + i * step;
+                        if (qx < 0 || qx >= width) {
+                            continue;
+                        }
+                        int q = qy * width + qx;
+                        float qr = in[3 * q], qg = in[3 * q + 1], qb = in[3 * q + 2];
+                        if (Float.isNaN(qr)) {
+                            continue;
+                        }
+
+                        float weight = KERNEL[i + 2] * KERNEL[j + 2];
+                        // a pixel that missed everything has no normal to compare
+                        if (nx != 0 || ny != 0 || nz != 0) {
+                            float cos = nx * frame.normal(q, 0) + ny * frame.normal(q, 1) + nz * frame.normal(q, 2);
+                            float normalWeight = Math.max(0, cos);
+                            for (int k = 0; k < NORMAL_SQUARINGS; k++) {
+                                normalWeight *= normalWeight;
+                            }
+                            if (normalWeight == 0) {
+                                continue;
+                            }
+                            weight *= normalWeight;
+                        }
+
+                        // the colour and depth weights are multiplied by adding their exponents, so there's one exp a tap
+                        float dr = qr - r, dg = qg - g, db = qb - b;
+                        float exponent = (dr * dr + dg * dg + db * db) * invScale;
+                        float qDepth = frame.depth(q);
+                        if (depth != qDepth) {
+                            if (Float.isInfinite(depth) || Float.isInfinite(qDepth)) {
+                                // one of them missed everything
+                                continue;
+                            }
+                            exponent += Math.abs(qDepth - depth) * invDepthScale * INVERSE_DISTANCE[j + 2][i + 2];
+                        }
+                        weight *= fastExp(-exponent);
+
+                        sumR += weight * qr;
+                        sumG += weight * qg;
+                        sumB += weight * qb;
+                        sumWeight += weight;
+                    }
+                }
+                // the centre tap always has a weight
+                out[3 * p] = sumR / sumWeight;
+                out[3 * p + 1] = sumG / sumWeight;
+                out[3 * p + 2] = sumB / sumWeight;
+            }
+        }
+    }
+
+    // e^x for x <= 0 as (1 + x/64)^64, which is within 0.01 everywhere and 0 below -64. Math.exp took most of the filter's time
+    private static float fastExp(float x) {
+        float result = Math.max(0, 1 + x / 64);
+        for (int k = 0; k < 6; k++) {
+            result *= result;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,109 @@
+package uk.ac.cam.cl.bdt29;
+
+import uk.ac.cam.cl.bdt29.data_structures.ColorRGB;
+import uk.ac.cam.cl.bdt29.data_structures.Vector3;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+public class EnvironmentMap {
+    // An equirectangular image surrounding the scene at infinity, looked up by the direction of any ray that misses every object.
+    // The top row of the image is straight up, and the middle column is straight ahead along +z before rotation
+
+    // The prefiltered copy is this many times smaller in each direction, each of its texels the average of a block of the original
+    private static final int PREFILTER_FACTOR = 8;
+
+    private ColorRGB[][] map;
+    private int mapWidth, mapHeight;
+
+    // A blurred copy for rays that have already bounced, where the detail of the full image only adds noise
+    private ColorRGB[][] prefiltered;
+    private int prefilteredWidth, prefilteredHeight;
+
+    private final double intensity;
+
+    // Turn about the y axis, in radians
+    private final double rotation;
+
+    public EnvironmentMap(String filename, double intensity, double rotation) {
+        this.intensity = intensity;
+        this.rotation = Math.toRadians(rotation);
+        loadMap(filename);
+        prefilter();
+    }
+
+    private void loadMap(String filename) {
+        BufferedImage inputImg;
+        try {
+            inputImg = ImageIO.read(new File(filename));
+        } catch (IOException e) {
+            throw new RuntimeException("error reading environment map:\n" + e.getMessage());
+        }
+        if (inputImg == null) {
+            throw new RuntimeException("environment map is not an image: " + filename);
+        }
+        mapHeight = inputImg.getHeight();
+        mapWidth = inputImg.getWidth();
+        map = new ColorRGB[mapHeight][mapWidth];
+        for (int row = 0; row < mapHeight; row++) {
+            for (int col = 0; col < mapWidth; col++) {
+                var colour = inputImg.getRGB(col, row);
+                double blue = colour & 0xff;
+                double green = (colour & 0xff00) >> 8;
+                double red = (colour & 0xff0000) >> 16;
+
+                map[row][col] = new ColorRGB(red, green, blue).scale(intensity / 255.);
+            }
+        }
+    }
+
+    // Box filter the map down by PREFILTER_FACTOR, keeping at least one texel in each direction
+    private void prefilter() {
+        prefilteredWidth = Math.max(1, mapWidth / PREFILTER_FACTOR);
+        prefilteredHeight = Math.max(1, mapHeight / PREFILTER_FACTOR);
+        prefiltered = new ColorRGB[prefilteredHeight][prefilteredWidth];
+        for (int row = 0; row < prefilteredHeight; row++) {
+            int rowStart = row * mapHeight / prefilteredHeight;
+            int rowEnd = (row + 1) * mapHeight / prefilteredHeight;
+            for (int col = 0; col < prefilteredWidth; col++) {
+                int colStart = col * mapWidth / prefilteredWidth;
+                int colEnd = (col + 1) * mapWidth / prefilteredWidth;
+
+                double r = 0, g = 0, b = 0;
+                for (int y = rowStart; y < rowEnd; y++) {
+                    for (int x = colStart; x < colEnd; x++) {
+                        r += map[y][x].r;
+                        g += map[y][x].g;
+                        b += map[y][x].b;
+                    }
+                }
+                double count = (rowEnd - rowStart) * (colEnd - colStart);
+                prefiltered[row][col] = new ColorRGB(r / count, g / count, b / count);
+            }
+        }
+    }
+
+    // The colour seen looking along direction, which must be normalised
+    public ColorRGB lookup(Vector3 direction) {
+        return lookup(direction, map, mapWidth, mapHeight);
+    }
+
+    // As above, but from the blurred copy
+    public ColorRGB lookupPrefiltered(Vector3 direction) {
+        return lookup(direction, prefiltered, prefilteredWidth, prefilteredHeight);
+    }
+
+    private ColorRGB lookup(Vector3 direction, ColorRGB[][] texels, int width, int height) {
+        // longitude from +z towards +x, latitude from straight up
+        double phi = Math.atan2(direction.x, direction.z) + rotation;
+        double theta = Math.acos(Math.max(-1, Math.min(1, direction.y)));
+
+        double u = phi / (2 * Math.PI) + 0.5;
+        u -= Math.floor(u);
+        int col = Math.min(width - 1, (int) (u * width));
+        int row = Math.min(height - 1, (int) (theta / Math.PI * height));
+        return texels[row][col];
+    }
+}
@@ -0,0 +1,245 @@
+package uk.ac.cam.cl.bdt29;
+
+import uk.ac.cam.cl.bdt29.data_structures.ColorRGB;
+import uk.ac.cam.cl.bdt29.data_structures.Vector3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class FrameBuffer {
+    // The linear colour of every pixel and the variance of the brightness of the lens rays averaged into it, along with
+    // what the ray through the centre of its lens first saw: the albedo of the surface, its normal and how far away it was.
+    // These guide the denoiser. Whether the pixel has had its anti-aliasing samples added is kept too, so a resumed render
+    // only anti-aliases the edge pixels that still need it. Pixels are stored row by row, three floats for colours and
+    // normals and one otherwise, and a pixel that hasn't been traced yet has a NaN colour.
+    //
+    // Everything is kept off the heap, in direct buffers or a memory-mapped file, so large frames are never scanned or
+    // copied by the garbage collector. A mapped file is written back by the OS even if the renderer dies, so a render can
+    // be resumed from it, and other programs can read it while it is being rendered. The file is a header of HEADER_SIZE
+    // bytes (MAGIC, VERSION, width, height as ints, then a long hash of the key for the scene and settings it was rendered
+    // with) followed by the colour, variance, albedo, normal, depth and anti-aliased planes in that order, all little
+    // endian. Each plane is its own buffer, so only a single plane has to fit in 2GB
+
+    private static final int MAGIC = 0x46524d42; // "FRMB"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 24;
+
+    // The floats per pixel of each plane, in file order
+    private static final int[] PLANE_FLOATS = {3, 1, 3, 3, 1, 1};
+
+    private final int width, height;
+    private final FloatBuffer colour;
+    private final FloatBuffer variance;
+    private final FloatBuffer albedo;
+    private final FloatBuffer normal;
+    private final FloatBuffer depth;
+    private final FloatBuffer antialiased;
+
+    // The mapped planes, which have to be forced out to the file, or null if the frame is only in memory
+    private final MappedByteBuffer[] mapped;
+
+    // A frame in memory, with nothing traced
+    public FrameBuffer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        FloatBuffer[] planes = new FloatBuffer[PLANE_FLOATS.length];
+        for (int i = 0; i < planes.length; i++) {
+            planes[i] = ByteBuffer.allocateDirect(planeBytes(i)).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        }
+        colour = planes[0];
+        variance = planes[1];
+        albedo = planes[2];
+        normal = planes[3];
+        depth = planes[4];
+        antialiased = planes[5];
+        mapped = null;
+        clear();
+    }
+
+    private FrameBuffer(int width, int height, MappedByteBuffer[] mapped) {
+        this.width = width;
+        this.height = height;
+        this.mapped = mapped;
+        colour = mapped[0].asFloatBuffer();
+        variance = mapped[1].asFloatBuffer();
+        albedo = mapped[2].asFloatBuffer();
+        normal = mapped[3].asFloatBuffer();
+        depth = mapped[4].asFloatBuffer();
+        antialiased = mapped[5].asFloatBuffer();
+    }
+
+    /*
+     * A frame kept in file, which is created with nothing traced if it doesn't exist yet. An existing file keeps whatever
+     * it holds, so the pixels already traced into it don't have to be traced again, and has to be for the same size image
+     * and the same key. The key should describe everything that changes the colour of a pixel, such as the scene and the
+     * renderer's settings, so pixels traced from something else are never mixed in
+     */
+    public static FrameBuffer map(Path file, int width, int height, String key) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            boolean existing = channel.size() > 0;
+            long fileSize = HEADER_SIZE;
+            for (int i = 0; i < PLANE_FLOATS.length; i++) {
+                fileSize += planeBytes(i, width, height);
+            }
+
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (existing) {
+                if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                    throw new RuntimeException("not a frame file: " + file);
+                }
+                if (header.getInt(8) != width || header.getInt(12) != height) {
+                    throw new RuntimeException("frame file " + file + " is for a " + header.getInt(8) + "x" + header.getInt(12) +
+                            " image, not " + width + "x" + height);
+                }
+                if (header.getLong(16) != hash(key)) {
+                    throw new RuntimeException("frame file " + file + " was rendered from a different scene or with different settings");
+                }
+                if (channel.size() < fileSize) {
+                    throw new RuntimeException("frame file " + file + " is cut short");
+                }
+            } else {
+                header.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, width).putInt(12, height).putLong(16, hash(key));
+            }
+
+            MappedByteBuffer[] planes = new MappedByteBuffer[PLANE_FLOATS.length];
+            long position = HEADER_SIZE;
+            for (int i = 0; i < planes.length; i++) {
+                int size = planeBytes(i, width, height);
+                planes[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+                planes[i].order(ByteOrder.LITTLE_ENDIAN);
+                position += size;
+            }
+
+            // the mapping outlives the channel
+            FrameBuffer frame = new FrameBuffer(width, height, planes);
+            if (!existing) {
+                frame.clear();
+            }
+            return frame;
+        } catch (IOException e) {
+            throw new RuntimeException("error mapping frame file " + file + ":\n" + e.getMessage());
+        }
+    }
+
+    // 64 bit FNV-1a over the characters of key
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private int planeBytes(int plane) {
+        return planeBytes(plane, width, height);
+    }
+
+    private static int planeBytes(int plane, int width, int height) {
+        long bytes = (long) Float.BYTES * PLANE_FLOATS[plane] * width * height;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new RuntimeException("a " + width + "x" + height + " frame is too large");
+        }
+        return (int) bytes;
+    }
+
+    // Forget every pixel
+    public void clear() {
+        for (int i = 0; i < 3 * width * height; i++) {
+            colour.put(i, Float.NaN);
+        }
+    }
+
+    // Make sure everything written so far is in the file, if the frame is mapped
+    public void flush() {
+        if (mapped != null) {
+            for (MappedByteBuffer plane : mapped) {
+                plane.force();
+            }
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean isTraced(int pixel) {
+        return !Float.isNaN(colour.get(3 * pixel));
+    }
+
+    public ColorRGB getColour(int pixel) {
+        return new ColorRGB(colour.get(3 * pixel), colour.get(3 * pixel + 1), colour.get(3 * pixel + 2));
+    }
+
+    /*
+     * Red goes in last, so a pixel is only ever counted as traced once all of its colour is there. A new colour hasn't been
+     * anti-aliased until setAntialiased says so
+     */
+    public void setColour(int pixel, ColorRGB c) {
+        antialiased.put(pixel, 0);
+        colour.put(3 * pixel + 1, (float) c.g);
+        colour.put(3 * pixel + 2, (float) c.b);
+        colour.put(3 * pixel, (float) c.r);
+    }
+
+    public boolean isAntialiased(int pixel) {
+        return antialiased.get(pixel) != 0;
+    }
+
+    public void setAntialiased(int pixel) {
+        antialiased.put(pixel, 1);
+    }
+
+    // The variance of the brightness of the lens rays for the pixel, 0 if only one was traced
+    public void setVariance(int pixel, double v) {
+        variance.put(pixel, (float) v);
+    }
+
+    // What the ray through the centre of the lens hit first
+    public void setSurface(int pixel, ColorRGB surfaceAlbedo, Vector3 surfaceNormal, double distance) {
+        albedo.put(3 * pixel, (float) surfaceAlbedo.r);
+        albedo.put(3 * pixel + 1, (float) surfaceAlbedo.g);
+        albedo.put(3 * pixel + 2, (float) surfaceAlbedo.b);
+        normal.put(3 * pixel, (float) surfaceNormal.x);
+        normal.put(3 * pixel + 1, (float) surfaceNormal.y);
+        normal.put(3 * pixel + 2, (float) surfaceNormal.z);
+        depth.put(pixel, (float) distance);
+    }
+
+    // The ray through the centre of the lens hit nothing, so the pixel shows the background, which is its own albedo
+    public void setMiss(int pixel) {
+        setSurface(pixel, new ColorRGB(1), new Vector3(0), Double.POSITIVE_INFINITY);
+    }
+
+    // Single channels, 0 to 2 for red to blue or x to z, for the denoiser's inner loops
+    public float colour(int pixel, int channel) {
+        return colour.get(3 * pixel + channel);
+    }
+
+    public float variance(int pixel) {
+        return variance.get(pixel);
+    }
+
+    public float albedo(int pixel, int channel) {
+        return albedo.get(3 * pixel + channel);
+    }
+
+    public float normal(int pixel, int channel) {
+        return normal.get(3 * pixel + channel);
+    }
+
+    public float depth(int pixel) {
+        return depth.get(pixel);
+    }
+}
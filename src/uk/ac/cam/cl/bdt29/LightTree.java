@@ -0,0 +1,140 @@
+package uk.ac.cam.cl.bdt29;
+
+import uk.ac.cam.cl.bdt29.data_structures.ColorRGB;
+import uk.ac.cam.cl.bdt29.data_structures.Vector3;
+import uk.ac.cam.cl.bdt29.elements.PointLight;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class LightTree {
+    // A binary tree over the point lights of a scene, used to pick a few lights at a shading point in proportion to how much
+    // each is likely to contribute there. The probability of every pick is returned so the result can be weighted to stay unbiased
+
+    // No light is ever given less than this fraction of its importance for facing away from the surface, since the specular term can still see it
+    private static final double MIN_ORIENTATION = 0.1;
+
+    private static class Node {
+        // Bounding sphere of the lights below this node
+        Vector3 centre;
+        double radius;
+
+        // Total emitted power of the lights below this node
+        double power;
+
+        Node left, right;
+        PointLight light; // only set for leaves
+    }
+
+    // A light chosen by sample(), along with the probability it had of being chosen
+    public static class Sample {
+        public final PointLight light;
+        public final double probability;
+
+        private Sample(PointLight light, double probability) {
+            this.light = light;
+            this.probability = probability;
+        }
+    }
+
+    private final Node root;
+    private final int size;
+
+    public LightTree(List<PointLight> lights) {
+        this.size = lights.size();
+        this.root = lights.isEmpty() ? null : build(new ArrayList<>(lights));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static double getPower(PointLight light) {
+        ColorRGB colour = light.getColour();
+        return light.getIntensity() * (colour.r + colour.g + colour.b) / 3;
+    }
+
+    // Split the lights in half along the axis they are most spread out on
+    private Node build(List<PointLight> lights) {
+        Node node = new Node();
+        if (lights.size() == 1) {
+            node.light = lights.get(0);
+            node.centre = node.light.getPosition();
+            node.radius = 0;
+            node.power = getPower(node.light);
+            return node;
+        }
+
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY, minZ = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY, maxZ = Double.NEGATIVE_INFINITY;
+        for (PointLight light : lights) {
+            Vector3 p = light.getPosition();
+            minX = Math.min(minX, p.x); maxX = Math.max(maxX, p.x);
+            minY = Math.min(minY, p.y); maxY = Math.max(maxY, p.y);
+            minZ = Math.min(minZ, p.z); maxZ = Math.max(maxZ, p.z);
+        }
+        double extentX = maxX - minX, extentY = maxY - minY, extentZ = maxZ - minZ;
+        Comparator<PointLight> order;
+        if (extentX >= extentY && extentX >= extentZ) {
+            order = Comparator.comparingDouble(light -> light.getPosition().x);
+        } else if (extentY >= extentZ) {
+            order = Comparator.comparingDouble(light -> light.getPosition().y);
+        } else {
+            order = Comparator.comparingDouble(light -> light.getPosition().z);
+        }
+        lights.sort(order);
+
+        int middle = lights.size() / 2;
+        node.left = build(new ArrayList<>(lights.subList(0, middle)));
+        node.right = build(new ArrayList<>(lights.subList(middle, lights.size())));
+
+        node.centre = new Vector3((minX + maxX) / 2, (minY + maxY) / 2, (minZ + maxZ) / 2);
+        node.radius = new Vector3(extentX, extentY, extentZ).magnitude() / 2;
+        node.power = node.left.power + node.right.power;
+        return node;
+    }
+
+    /*
+     * An estimate of how much light a node sends to the point P with surface normal N: its power, with the inverse square
+     * falloff of PointLight.getIlluminationAt and the cosine to the surface, both as optimistic as the node's bounds allow
+     */
+    private double importance(Node node, Vector3 P, Vector3 N) {
+        Vector3 toCentre = node.centre.subtract(P);
+        double distance = toCentre.magnitude();
+        if (distance <= node.radius) {
+            // the point is inside the cluster, so only the power can tell the lights apart
+            return node.power / Math.max(node.radius * node.radius, 1e-9);
+        }
+
+        // the closest the direction to any light in the node can get to the normal
+        double angleToNormal = Math.acos(Math.max(-1, Math.min(1, toCentre.dot(N) / distance)));
+        double angularRadius = Math.asin(node.radius / distance);
+        double orientation = Math.max(MIN_ORIENTATION, Math.cos(Math.max(0, angleToNormal - angularRadius)));
+
+        double closest = distance - node.radius;
+        return node.power * orientation / Math.max(closest * closest, 1e-9);
+    }
+
+    // Walk down the tree choosing children at random in proportion to their importance
+    public Sample sample(Vector3 P, Vector3 N) {
+        Node node = root;
+        double probability = 1;
+        while (node.light == null) {
+            double leftImportance = importance(node.left, P, N);
+            double rightImportance = importance(node.right, P, N);
+            double total = leftImportance + rightImportance;
+            double probabilityLeft = total > 0 ? leftImportance / total : 0.5;
+
+            if (ThreadLocalRandom.current().nextDouble() < probabilityLeft) {
+                node = node.left;
+                probability *= probabilityLeft;
+            } else {
+                node = node.right;
+                probability *= 1 - probabilityLeft;
+            }
+        }
+        return new Sample(node.light, probability);
+    }
+}
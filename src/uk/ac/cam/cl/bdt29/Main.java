@@ -1,9 +1,15 @@
 package uk.ac.cam.cl.bdt29;
 
+import uk.ac.cam.cl.bdt29.data_structures.ColorRGB;
+
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -20,11 +26,25 @@ public class Main {
     private static final int DEFAULT_HEIGHT_PX = 1080; //600
 
     public static void usageError() { // Usa+ge information
-        System.err.println("USAGE: <tick2> [--input INPUT] [--output OUTPUT] [--bounces BOUNCES] [--resolution WIDTHxHEIGHT]");
+        System.err.println("USAGE: <tick2> [--input INPUT] [--output OUTPUT] [--bounces BOUNCES] [--resolution WIDTHxHEIGHT] [--watch true|false] [--light-samples LIGHTS] [--shadow-rays RAYS] [--integrator recursive|wavefront] [--precision double|float] [--quality preview|draft|final] [--preview DIVISOR] [--antialias true|false] [--denoise true|false] [--frame FILE] [--threads THREADS] [--tile-order hilbert|morton|scanline]");
         System.exit(-1);
     }
 
-    public static void main(String[] args) throws IOException {
+    // The renderer for an integrator name, recursive traces one ray at a time and wavefront a tile of rays at a time
+    public static Renderer createRenderer(String integrator, int width, int height, int bounces) {
+        switch (integrator) {
+            case "recursive":
+                return new Renderer(width, height, bounces, new ColorRGB(0));
+            case "wavefront":
+                return new WavefrontRenderer(width, height, bounces, new ColorRGB(0));
+            default:
+                System.err.println("unknown integrator: " + integrator);
+                usageError();
+                return null;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
         // We should have an even number of arguments - each option and its value
 
 
@@ -38,6 +58,24 @@ public class Main {
         int width = DEFAULT_WIDTH_PX, height = DEFAULT_HEIGHT_PX;
 
         int bounces = DEFAULT_BOUNCES;
+        boolean watch = false;
+        // the quality profile sets the sample counts, which can then be changed one at a time
+        QualityProfile quality = QualityProfile.FINAL;
+        Integer lightSamples = null;
+        Integer shadowRays = null;
+        Boolean antialias = null;
+        boolean denoise = false;
+        // if set, the linear frame is kept in this file as it is traced, and a render into a file that already holds
+        // some pixels only traces the rest
+        String frameFile = null;
+        // by default there is a thread for every core, rendering tiles along a Hilbert curve
+        Integer threads = null;
+        TileOrder tileOrder = TileOrder.HILBERT;
+        // if set, a preview with one pixel in every previewDivisor by previewDivisor block is saved first, then the image
+        // is saved again after each interlaced pass until it is finished
+        int previewDivisor = 0;
+        String integrator = "recursive";
+        Precision precision = Precision.DOUBLE;
         for (int i = 0; i < args.length; i += 2) {
             switch (args[i]) {
                 case "-i":
@@ -68,23 +106,153 @@ public class Main {
                         usageError();
                     }
                     break;
+                case "-w":
+                case "--watch":
+                    watch = Boolean.parseBoolean(args[i + 1]);
+                    break;
+                case "-l":
+                case "--light-samples":
+                    lightSamples = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-s":
+                case "--shadow-rays":
+                    shadowRays = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--integrator":
+                    integrator = args[i + 1];
+                    break;
+                case "--precision":
+                    try {
+                        precision = Precision.parse(args[i + 1]);
+                    } catch (IllegalArgumentException e) {
+                        System.err.println(e.getMessage());
+                        usageError();
+                    }
+                    break;
+                case "-a":
+                case "--antialias":
+                    antialias = Boolean.parseBoolean(args[i + 1]);
+                    break;
+                case "-d":
+                case "--denoise":
+                    denoise = Boolean.parseBoolean(args[i + 1]);
+                    break;
+                case "-f":
+                case "--frame":
+                    frameFile = args[i + 1];
+                    break;
+                case "-t":
+                case "--threads":
+                    threads = Integer.parseInt(args[i + 1]);
+                    if (threads <= 0) {
+                        System.err.println("threads must be positive");
+                        usageError();
+                    }
+                    break;
+                case "--tile-order":
+                    try {
+                        tileOrder = TileOrder.parse(args[i + 1]);
+                    } catch (IllegalArgumentException e) {
+                        System.err.println(e.getMessage());
+                        usageError();
+                    }
+                    break;
+                case "-p":
+                case "--preview":
+                    previewDivisor = Integer.parseInt(args[i + 1]);
+                    if (previewDivisor <= 0) {
+                        System.err.println("preview divisor must be positive");
+                        usageError();
+                    }
+                    break;
+                case "-q":
+                case "--quality":
+                    try {
+                        quality = QualityProfile.parse(args[i + 1]);
+                    } catch (IllegalArgumentException e) {
+                        System.err.println(e.getMessage());
+                        usageError();
+                    }
+                    break;
                 default:
                     System.err.println("Unknown option: " + args[i]);
                     usageError();
             }
         }
 
+        if (lightSamples != null && lightSamples <= 0 || shadowRays != null && shadowRays <= 0) {
+            System.err.println("light samples and shadow rays must be positive");
+            usageError();
+        }
+        Renderer renderer = createRenderer(integrator, width, height, bounces);
+        quality.applyTo(renderer);
+        if (lightSamples != null) {
+            renderer.setLightSampleCount(lightSamples);
+        }
+        if (shadowRays != null) {
+            renderer.setShadowRayCount(shadowRays);
+        }
+        if (antialias != null) {
+            renderer.setAntialiasing(antialias);
+        }
+        renderer.setDenoising(denoise);
+        renderer.setPrecision(precision);
+        renderer.setTileOrder(tileOrder);
+        if (threads != null) {
+            renderer.setThreadCount(threads);
+        }
+        FrameBuffer frame = null;
+        if (frameFile != null) {
+            // a frame from another scene or other settings is rejected rather than resumed
+            String sceneText = new String(Files.readAllBytes(Paths.get(inputSceneFile)), StandardCharsets.UTF_8);
+            frame = FrameBuffer.map(Paths.get(frameFile), width, height, sceneText + "\n" + renderer.getSettingsKey());
+            renderer.setFrameBuffer(frame);
+        }
+
+        // Keep re-rendering the scene as it is edited
+        if (watch) {
+            new SceneWatcher(inputSceneFile, output, renderer, precision).watch();
+            return;
+        }
+
         // Create the scene from the XML file
         System.out.printf( "Loading scene '%s'\n", inputSceneFile );
-        RaycastHit.Scene scene = new SceneLoader(inputSceneFile).getScene();
+        RaycastHit.Scene scene = new SceneLoader(inputSceneFile, precision).getScene();
 
 
 
         // Create the image and colour the pixels
-        BufferedImage image = new Renderer(width, height, bounces, scene.getBackgroundColour()).render(scene);
+        renderer.setBackgroundColour(scene.getBackgroundColour());
+        File save = new File(output);
+        // timed here rather than inside the renderer, so the time covers every pass including anti-aliasing and denoising
+        long start = System.currentTimeMillis();
+        if (previewDivisor > 0) {
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            renderer.renderProgressive(scene, image, previewDivisor, pass -> {
+                try {
+                    ImageIO.write(pass, "png", save);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                System.out.printf("Saved pass to '%s'\n", save);
+            });
+            if (frame != null) {
+                frame.flush();
+            }
+            System.out.printf("Rendered in %dms\n", System.currentTimeMillis() - start);
+            return;
+        }
+        BufferedImage image;
+        if (frame != null) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            renderer.resume(scene, image);
+            frame.flush();
+        } else {
+            image = renderer.render(scene);
+        }
+        System.out.printf("Rendered in %dms\n", System.currentTimeMillis() - start);
 
         // Save the image to disk
-        File save = new File(output);
         ImageIO.write(image, "png", save);
     }
 }
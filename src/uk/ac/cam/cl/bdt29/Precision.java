@@ -0,0 +1,41 @@
+package uk.ac.cam.cl.bdt29;
+
+import uk.ac.cam.cl.bdt29.data_structures.Vector3;
+
+public enum Precision {
+    // How the bulk geometry of a scene is stored. In FLOAT the packed kernels (sphere sets and meshes) keep their arrays as
+    // floats, which halves the memory they stream through on every ray. Shading and final hit locations stay in double,
+    // as the image is only 8 bits per channel at the end anyway
+
+    DOUBLE,
+    FLOAT;
+
+    // Rays leaving a surface are pushed at least this far off it
+    public static final double EPSILON = 0.0001;
+
+    // A float holds a position to about 1 part in 10^7, the offset is a hundred times that so it always clears the rounding
+    private static final double FLOAT_RELATIVE_OFFSET = 100 * Math.ulp(1f);
+
+    /*
+     * How far a ray leaving a surface at P has to start from it so it can't hit the same surface again. A float coordinate
+     * is only accurate relative to its size, so far from the origin the fixed offset would fall inside the rounding error
+     */
+    public double offsetAt(Vector3 P) {
+        if (this == DOUBLE) {
+            return EPSILON;
+        }
+        double largest = Math.max(Math.abs(P.x), Math.max(Math.abs(P.y), Math.abs(P.z)));
+        return Math.max(EPSILON, largest * FLOAT_RELATIVE_OFFSET);
+    }
+
+    public static Precision parse(String name) {
+        switch (name) {
+            case "double":
+                return DOUBLE;
+            case "float":
+                return FLOAT;
+            default:
+                throw new IllegalArgumentException("unknown precision: " + name);
+        }
+    }
+}
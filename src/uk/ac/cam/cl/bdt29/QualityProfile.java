@@ -0,0 +1,44 @@
+package uk.ac.cam.cl.bdt29;
+
+public enum QualityProfile {
+    // Named sets of sample counts, trading noise for time. PREVIEW traces one ray per pixel through the centre of the lens,
+    // so there is no depth of field at all, and FINAL uses the renderer's default counts with anti-aliased edges
+
+    PREVIEW(1, 1, 2, false),
+    DRAFT(4, 4, 4, true),
+    FINAL(Renderer.DEFAULT_CAMERA_RAY_COUNT, Renderer.DEFAULT_SHADOW_RAY_COUNT, Renderer.DEFAULT_LIGHT_SAMPLE_COUNT, true);
+
+    // Rays through the lens for each pixel, shadow rays towards each area light and lights sampled at each point
+    public final int cameraRays;
+    public final int shadowRays;
+    public final int lightSamples;
+    // Whether edges get extra samples
+    public final boolean antialiasing;
+
+    QualityProfile(int cameraRays, int shadowRays, int lightSamples, boolean antialiasing) {
+        this.cameraRays = cameraRays;
+        this.shadowRays = shadowRays;
+        this.lightSamples = lightSamples;
+        this.antialiasing = antialiasing;
+    }
+
+    public void applyTo(Renderer renderer) {
+        renderer.setCameraRayCount(cameraRays);
+        renderer.setShadowRayCount(shadowRays);
+        renderer.setLightSampleCount(lightSamples);
+        renderer.setAntialiasing(antialiasing);
+    }
+
+    public static QualityProfile parse(String name) {
+        switch (name) {
+            case "preview":
+                return PREVIEW;
+            case "draft":
+                return DRAFT;
+            case "final":
+                return FINAL;
+            default:
+                throw new IllegalArgumentException("unknown quality: " + name);
+        }
+    }
+}
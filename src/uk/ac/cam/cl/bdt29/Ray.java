@@ -10,10 +10,18 @@ public class Ray {
     // the refractive index that the ray is currently in
     private double refractiveIndex;
 
+    // the roughness of the surface the ray was reflected off, 0 for rays from the camera and through glass
+    private double roughness;
+
     public Ray(Vector3 origin, Vector3 direction, double refractiveIndex) {
+        this(origin, direction, refractiveIndex, 0);
+    }
+
+    public Ray(Vector3 origin, Vector3 direction, double refractiveIndex, double roughness) {
         this.origin = origin;
         this.direction = direction;
         this.refractiveIndex = refractiveIndex;
+        this.roughness = roughness;
     }
 
     public Vector3 getOrigin() {
@@ -27,6 +35,11 @@ public class Ray {
     public double getRefractiveIndex() {
         return refractiveIndex;
     }
+
+    public double getRoughness() {
+        return roughness;
+    }
+
     // Determine position for certain scalar parameter distance i.e. (origin + direction * distance)
     public Vector3 evaluateAt(double distance) {
         return origin.add(direction.scale(distance));
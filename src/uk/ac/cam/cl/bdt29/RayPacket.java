@@ -0,0 +1,128 @@
+package uk.ac.cam.cl.bdt29;
+
+import uk.ac.cam.cl.bdt29.data_structures.Vector3;
+
+public class RayPacket {
+    // A small group of coherent rays stored as structure-of-arrays, traced through the scene together
+
+    public static final int MAX_SIZE = 16;
+
+    // Ray origins and directions, one entry per ray
+    public final double[] originX = new double[MAX_SIZE];
+    public final double[] originY = new double[MAX_SIZE];
+    public final double[] originZ = new double[MAX_SIZE];
+    public final double[] directionX = new double[MAX_SIZE];
+    public final double[] directionY = new double[MAX_SIZE];
+    public final double[] directionZ = new double[MAX_SIZE];
+
+    private final Ray[] rays = new Ray[MAX_SIZE];
+    private int size = 0;
+
+    // The closest hit found so far for each ray
+    private final RaycastHit[] hits = new RaycastHit[MAX_SIZE];
+
+    // A cone containing every ray, the apex is blurred into a sphere so that rays don't need a shared origin
+    private Vector3 apex;
+    private double apexRadius;
+    private Vector3 axis;
+    private double halfAngle;
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == MAX_SIZE;
+    }
+
+    public void add(Ray ray) {
+        Vector3 O = ray.getOrigin();
+        Vector3 D = ray.getDirection();
+        originX[size] = O.x;
+        originY[size] = O.y;
+        originZ[size] = O.z;
+        directionX[size] = D.x;
+        directionY[size] = D.y;
+        directionZ[size] = D.z;
+        rays[size] = ray;
+        hits[size] = new RaycastHit();
+        size++;
+    }
+
+    public Ray getRay(int i) {
+        return rays[i];
+    }
+
+    public RaycastHit getHit(int i) {
+        return hits[i];
+    }
+
+    public double getHitDistance(int i) {
+        return hits[i].getDistance();
+    }
+
+    // Keep the hit for ray i if it is closer than the current one
+    public void offerHit(int i, RaycastHit hit) {
+        if (hit.getDistance() < hits[i].getDistance()) {
+            hits[i] = hit;
+        }
+    }
+
+    // Compute the bounding cone of the rays, must be called after the last ray is added
+    public void finish() {
+        double sumOX = 0, sumOY = 0, sumOZ = 0, sumDX = 0, sumDY = 0, sumDZ = 0;
+        for (int i = 0; i < size; i++) {
+            sumOX += originX[i];
+            sumOY += originY[i];
+            sumOZ += originZ[i];
+            sumDX += directionX[i];
+            sumDY += directionY[i];
+            sumDZ += directionZ[i];
+        }
+        apex = new Vector3(sumOX / size, sumOY / size, sumOZ / size);
+        Vector3 sumD = new Vector3(sumDX, sumDY, sumDZ);
+        if (sumD.magnitude() < 1e-9) {
+            // the rays point in every direction, so there is nothing to cull with
+            axis = new Vector3(0, 0, 1);
+            halfAngle = Math.PI;
+        } else {
+            axis = sumD.normalised();
+            double minCos = 1;
+            for (int i = 0; i < size; i++) {
+                double cos = (directionX[i] * axis.x + directionY[i] * axis.y + directionZ[i] * axis.z)
+                        / Math.sqrt(directionX[i] * directionX[i] + directionY[i] * directionY[i] + directionZ[i] * directionZ[i]);
+                minCos = Math.min(minCos, cos);
+            }
+            halfAngle = Math.acos(Math.max(-1, minCos));
+        }
+
+        double maxDistanceSquared = 0;
+        for (int i = 0; i < size; i++) {
+            double ox = originX[i] - apex.x, oy = originY[i] - apex.y, oz = originZ[i] - apex.z;
+            maxDistanceSquared = Math.max(maxDistanceSquared, ox * ox + oy * oy + oz * oz);
+        }
+        apexRadius = Math.sqrt(maxDistanceSquared);
+    }
+
+    /*
+     * Whether any ray in the packet could hit a sphere. A ray from an origin within apexRadius of the apex that hits the sphere
+     * means the parallel ray from the apex hits the sphere grown by apexRadius, so the test is a cone against that bigger sphere.
+     */
+    public boolean mayIntersect(Vector3 centre, double radius) {
+        double grownRadius = radius + apexRadius;
+        Vector3 v = centre.subtract(apex);
+        double distanceSquared = v.dot(v);
+        if (distanceSquared <= grownRadius * grownRadius) {
+            return true;
+        }
+        double distance = Math.sqrt(distanceSquared);
+        // angle from the cone axis to the centre of the sphere, and the angular radius of the sphere as seen from the apex
+        double angleToCentre = Math.acos(Math.max(-1, Math.min(1, v.dot(axis) / distance)));
+        double angularRadius = Math.asin(grownRadius / distance);
+        return angleToCentre <= halfAngle + angularRadius;
+    }
+}
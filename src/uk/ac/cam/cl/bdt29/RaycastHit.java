@@ -4,9 +4,13 @@ import uk.ac.cam.cl.bdt29.data_structures.ColorRGB;
 import uk.ac.cam.cl.bdt29.data_structures.Vector3;
 import uk.ac.cam.cl.bdt29.elements.PointLight;
 import uk.ac.cam.cl.bdt29.elements.SceneObject;
+import uk.ac.cam.cl.bdt29.elements.SurfaceRecord;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 public class RaycastHit {
 
@@ -22,6 +26,17 @@ public class RaycastHit {
     // The normal of the object at the location hit by the ray
     private Vector3 normal;
 
+    // The location in the object's own space, used to look up textures. The same as location unless the object is instanced
+    private Vector3 localLocation;
+
+    // The instance the object was hit through, or null if it is directly in the scene
+    private SceneObject instance;
+
+    // Where on its surface the object was hit, in whatever coordinates it maps its textures with. Objects set these when they
+    // have already worked them out for the normal, so the colour lookup doesn't have to work them out again
+    private boolean hasSurfaceCoordinates = false;
+    private double surfaceU, surfaceV;
+
     public RaycastHit() {
         this.distance = Double.POSITIVE_INFINITY;
     }
@@ -31,6 +46,13 @@ public class RaycastHit {
         this.objectHit = objectHit;
         this.location = location;
         this.normal = normal;
+        this.localLocation = location;
+    }
+
+    public RaycastHit(SceneObject objectHit, double distance, Vector3 location, Vector3 normal, Vector3 localLocation, SceneObject instance) {
+        this(objectHit, distance, location, normal);
+        this.localLocation = localLocation;
+        this.instance = instance;
     }
 
     public SceneObject getObjectHit() {
@@ -49,20 +71,65 @@ public class RaycastHit {
         return distance;
     }
 
+    public Vector3 getLocalLocation() {
+        return localLocation;
+    }
+
+    public SceneObject getInstance() {
+        return instance;
+    }
+
+    public void setSurfaceCoordinates(double u, double v) {
+        this.hasSurfaceCoordinates = true;
+        this.surfaceU = u;
+        this.surfaceV = v;
+    }
+
+    // Keep the surface coordinates of another hit on the same object
+    public void copySurfaceCoordinates(RaycastHit other) {
+        this.hasSurfaceCoordinates = other.hasSurfaceCoordinates;
+        this.surfaceU = other.surfaceU;
+        this.surfaceV = other.surfaceV;
+    }
+
+    // Copy the surface coordinates into surface, returning false if the object didn't set any
+    public boolean getSurfaceCoordinates(SurfaceRecord surface) {
+        if (!hasSurfaceCoordinates) {
+            return false;
+        }
+        surface.u = surfaceU;
+        surface.v = surfaceV;
+        return true;
+    }
+
     public static class Scene {
 
         // A list of 3D objects to be rendered
         private List<SceneObject> objects;
 
+        // The objects which can cast shadows, built by prepare() so that shadow rays don't test the rest
+        private List<SceneObject> shadowCasters;
+
         // A list of point light sources
         private List<PointLight> pointLights;
 
+        // The point lights arranged for sampling in proportion to their contribution, built by prepare()
+        private LightTree lightTree;
+
         // The color of the ambient light in the scene
         private ColorRGB ambientLight;
         private ColorRGB backgroundColour;
 
+        // Seen by rays that miss every object, in place of the background colour if it is set
+        private EnvironmentMap environmentMap = null;
+
         private Vector3 cameraOrigin = new Vector3(0);
         private Vector3 cameraRotation = new Vector3(0);
+        private double cameraAperture = Camera.DEFAULT_APERTURE;
+        private double cameraFocusDistance = Camera.DEFAULT_FOCUS_DISTANCE;
+
+        // How many rays have been intersected with the scene, from any number of threads, for measuring rays per second
+        private final LongAdder raysCast = new LongAdder();
 
         public Scene() {
             objects = new LinkedList<SceneObject>();
@@ -75,9 +142,21 @@ public class RaycastHit {
             objects.add(object);
         }
 
+        // Find the shadow casters and build the light tree, once the scene has finished loading
+        public void prepare() {
+            shadowCasters = new ArrayList<>();
+            for (SceneObject object : objects) {
+                if (object.castsShadows()) {
+                    shadowCasters.add(object);
+                }
+            }
+            lightTree = new LightTree(pointLights);
+        }
+
         // Find the closest intersection of given ray with an object in the scene
         public RaycastHit findClosestIntersection(Ray ray) {
             RaycastHit closestHit = new RaycastHit(); // initially no intersection
+            raysCast.increment();
 
             // Loop over objects and find closest intersection
             for (SceneObject object : objects) {
@@ -89,18 +168,48 @@ public class RaycastHit {
             return closestHit;
         }
 
-        public ColorRGB findCompoundTransmittance(Ray ray, double distanceToLight) {
-            ColorRGB transmittance = new ColorRGB(1);
+        // Find the closest intersection of every ray in the packet, skipping objects that the whole packet misses
+        public void findClosestIntersections(RayPacket packet) {
+            findClosestIntersections(packet, objects);
+        }
+
+        // As above, but only with the objects which cast shadows, for packets of shadow rays
+        public void findClosestOccluders(RayPacket packet) {
+            findClosestIntersections(packet, shadowCasters);
+        }
+
+        private void findClosestIntersections(RayPacket packet, List<SceneObject> objects) {
+            packet.finish();
+            raysCast.add(packet.size());
             for (SceneObject object : objects) {
-                RaycastHit trialHit = object.intersectionWith(ray);
-                if (trialHit.getDistance() > 0 && trialHit.getDistance() < distanceToLight) {
-                    ColorRGB scaleTransmittance = trialHit.getObjectHit().getTransmittance();
-                    transmittance = transmittance.scale(scaleTransmittance);
+                if (object.isBounded() && !packet.mayIntersect(object.getBoundingCentre(), object.getBoundingRadius())) {
+                    continue;
                 }
+                object.intersectPacket(packet);
+            }
+        }
+
+        public ColorRGB findCompoundTransmittance(Ray ray, double distanceToLight) {
+            return findCompoundTransmittance(ray, distanceToLight, null);
+        }
+
+        // as above, but also adds every object that the ray passed through to blockers (if it is not null)
+        public ColorRGB findCompoundTransmittance(Ray ray, double distanceToLight, Collection<SceneObject> blockers) {
+            ColorRGB transmittance = new ColorRGB(1);
+            for (SceneObject object : shadowCasters) {
+                transmittance = object.filterTransmittance(ray, distanceToLight, transmittance, blockers);
             }
             return transmittance;
         }
 
+        public long getRaysCast() {
+            return raysCast.sum();
+        }
+
+        public List<SceneObject> getObjects() {
+            return objects;
+        }
+
         public ColorRGB getAmbientLighting() {
             return ambientLight;
         }
@@ -117,6 +226,14 @@ public class RaycastHit {
             return this.backgroundColour;
         }
 
+        public EnvironmentMap getEnvironmentMap() {
+            return environmentMap;
+        }
+
+        public void setEnvironmentMap(EnvironmentMap environmentMap) {
+            this.environmentMap = environmentMap;
+        }
+
         public PointLight getPointLight() {
             return pointLights.get(0);
         }
@@ -129,6 +246,10 @@ public class RaycastHit {
             pointLights.add(pointLight);
         }
 
+        public LightTree getLightTree() {
+            return lightTree;
+        }
+
         public Vector3 getCameraOrigin() {
             return this.cameraOrigin;
         }
@@ -145,6 +266,27 @@ public class RaycastHit {
             this.cameraRotation = rotation;
         }
 
+        public double getCameraAperture() {
+            return this.cameraAperture;
+        }
+
+        public void setCameraAperture(double aperture) {
+            this.cameraAperture = aperture;
+        }
+
+        public double getCameraFocusDistance() {
+            return this.cameraFocusDistance;
+        }
+
+        public void setCameraFocusDistance(double focusDistance) {
+            this.cameraFocusDistance = focusDistance;
+        }
+
+        // The camera looking at this scene with an image of width by height pixels
+        public Camera createCamera(int width, int height) {
+            return new Camera(width, height, cameraOrigin, cameraRotation, cameraAperture, cameraFocusDistance);
+        }
+
 
     }
 }
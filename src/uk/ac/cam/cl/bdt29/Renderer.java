@@ -1,38 +1,95 @@
 package uk.ac.cam.cl.bdt29;
 
 import uk.ac.cam.cl.bdt29.data_structures.ColorRGB;
-import uk.ac.cam.cl.bdt29.data_structures.SquareMatrix3;
 import uk.ac.cam.cl.bdt29.data_structures.Vector3;
-import uk.ac.cam.cl.bdt29.elements.Plane;
+import uk.ac.cam.cl.bdt29.elements.Material;
 import uk.ac.cam.cl.bdt29.elements.PointLight;
 import uk.ac.cam.cl.bdt29.elements.SceneObject;
+import uk.ac.cam.cl.bdt29.elements.SurfaceRecord;
 
 import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 
 public class Renderer {
 
     // The width and height of the image in pixels
-    private int width, height;
+    protected int width, height;
 
-    // Bias factor for reflected and shadow rays
-    private final double EPSILON = 0.0001;
+    // How the scene's geometry is stored, which decides how far reflected and shadow rays are pushed off a surface
+    private Precision precision = Precision.DOUBLE;
 
     // The number of times a ray can bounce for reflection
-    private int bounces;
+    protected int bounces;
 
     // Background colour of the image
     private ColorRGB backgroundColor;
 
-    // Distributed shadow tracing
-    private final int SHADOW_RAY_COUNT = 1; // 20
-
-    private final double LIGHT_SIZE = 0.00000001; // 0.1
-
-    // Depth of Field
-    private final int DOF_RAY_COUNT = 12; // 20
-    private final double DOF_FOCAL_PLANE = 3.85;
-    private final double DOF_AMOUNT = 0.045; // 0.05
+    // Distributed shadow tracing, the number of shadow rays cast towards area lights that don't set their own.
+    // Point lights only ever need one
+    public static final int DEFAULT_SHADOW_RAY_COUNT = 8;
+    protected int shadowRayCount = DEFAULT_SHADOW_RAY_COUNT;
+
+    // The number of lights sampled from the scene's light tree at each point, scenes with no more lights than this light every point with all of them
+    public static final int DEFAULT_LIGHT_SAMPLE_COUNT = 8;
+    protected int lightSampleCount = DEFAULT_LIGHT_SAMPLE_COUNT;
+
+    // Depth of Field, the number of rays traced through the lens for each pixel. The lens itself belongs to the scene's camera,
+    // and a pinhole camera or a single ray only traces the ray through the centre of the lens
+    public static final int DEFAULT_CAMERA_RAY_COUNT = 12; // 20
+    protected int cameraRayCount = DEFAULT_CAMERA_RAY_COUNT;
+
+    // Edge-adaptive anti-aliasing. Once the image is traced, a pixel that sees a different object through the centre of
+    // its lens than a neighbour, or whose displayed brightness differs from a neighbour's by more than AA_CONTRAST, has
+    // samples from AA_OFFSETS.length more places in it averaged in. Only edges pay for the extra rays
+    protected boolean antialiasing = false;
+    private static final double AA_CONTRAST = 0.1;
+    // A rotated grid of positions in the pixel relative to its centre, so no two share a row or column
+    private static final double[][] AA_OFFSETS = {{-0.125, -0.375}, {0.375, -0.125}, {0.125, 0.375}, {-0.375, 0.125}};
+
+    // Smooth the noise out of the finished image with Denoiser, guided by what the ray through the centre of the lens saw
+    protected boolean denoising = false;
+    // Set while a progressive render is part way through, so its passes aren't denoised one by one
+    private boolean denoisingDeferred = false;
+
+    // The linear colour of each pixel and what its centre ray saw, and the first object (or instance) seen through each
+    // pixel, for finding edges, all from the last render
+    protected FrameBuffer frame;
+    protected SceneObject[] primaryObjects;
+
+    // When not null, every object that a ray (including shadow rays) touches while tracing the current pixel is added
+    private Set<SceneObject> pathRecord = null;
+
+    // Tiles are rendered in this order, tileSize pixels square or chosen for the scene by chooseTileSize if it is 0, by
+    // threadCount threads at once. Each thread renders with its own copy of the renderer, so the scratch state below is
+    // never shared
+    protected TileOrder tileOrder = TileOrder.HILBERT;
+    protected int tileSize = 0;
+    protected int threadCount = Runtime.getRuntime().availableProcessors();
+
+    // Tile sizes are powers of two from MIN_TILE_SIZE to MAX_TILE_SIZE, as big as they can be while each tile costs less
+    // than about TILE_COST ray-object tests and every thread still gets TILES_PER_THREAD tiles to share the work out
+    private static final int MIN_TILE_SIZE = 8;
+    private static final int MAX_TILE_SIZE = 64;
+    private static final long TILE_COST = 1 << 20;
+    private static final int TILES_PER_THREAD = 8;
+
+    // Reused for the camera rays of each tile
+    protected final CameraRayBuffer cameraRays = new CameraRayBuffer(0);
+
+    // Packets reused for the aperture rays of a pixel and the shadow rays towards a light
+    private final RayPacket primaryPacket = new RayPacket();
+    private final RayPacket shadowPacket = new RayPacket();
+
+    // Reused for the texture coordinates of every hit that is shaded
+    protected final SurfaceRecord surface = new SurfaceRecord();
 
     public Renderer(int width, int height, int bounces, ColorRGB background) {
         this.width = width;
@@ -41,6 +98,82 @@ public class Renderer {
         this.backgroundColor = background;
     }
 
+    // A renderer with the same settings and the same frame as other, for another thread to render tiles with
+    protected Renderer(Renderer other) {
+        this(other.width, other.height, other.bounces, other.backgroundColor);
+        precision = other.precision;
+        shadowRayCount = other.shadowRayCount;
+        lightSampleCount = other.lightSampleCount;
+        cameraRayCount = other.cameraRayCount;
+        antialiasing = other.antialiasing;
+        denoising = other.denoising;
+        frame = other.frame;
+        primaryObjects = other.primaryObjects;
+    }
+
+    protected Renderer copy() {
+        return new Renderer(this);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void setBackgroundColour(ColorRGB background) {
+        this.backgroundColor = background;
+    }
+
+    public void setCameraRayCount(int cameraRayCount) {
+        this.cameraRayCount = cameraRayCount;
+    }
+
+    // Whether each pixel only needs the ray through the centre of the lens
+    protected boolean isPinhole(Camera camera) {
+        return camera.isPinhole() || cameraRayCount == 1;
+    }
+
+    public void setAntialiasing(boolean antialiasing) {
+        this.antialiasing = antialiasing;
+    }
+
+    public void setDenoising(boolean denoising) {
+        this.denoising = denoising;
+    }
+
+    public void setTileOrder(TileOrder tileOrder) {
+        this.tileOrder = tileOrder;
+    }
+
+    // 0 chooses the size for each scene
+    public void setTileSize(int tileSize) {
+        this.tileSize = tileSize;
+    }
+
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+    }
+
+    public void setShadowRayCount(int shadowRayCount) {
+        this.shadowRayCount = shadowRayCount;
+    }
+
+    public void setPrecision(Precision precision) {
+        this.precision = precision;
+    }
+
+    // How far to start a ray leaving the surface at P
+    protected double offsetAt(Vector3 P) {
+        return precision.offsetAt(P);
+    }
+
+    public void setLightSampleCount(int lightSampleCount) {
+        this.lightSampleCount = lightSampleCount;
+    }
+
     /*
      * Trace the ray through the supplied scene, returning the colour to be rendered.
      * The bouncesLeft parameter is for rendering reflective surfaces.
@@ -51,11 +184,34 @@ public class Renderer {
     protected ColorRGB trace(RaycastHit.Scene scene, Ray ray, int bouncesLeft) {
         // Find closest intersection of ray in the scene
         RaycastHit closestHit = scene.findClosestIntersection(ray);
+        return shade(scene, ray, closestHit, bouncesLeft);
+    }
 
+    // The colour seen by a ray that misses everything, from the environment map if the scene has one
+    protected ColorRGB background(RaycastHit.Scene scene, Ray ray) {
+        EnvironmentMap environment = scene.getEnvironmentMap();
+        if (environment == null) {
+            return backgroundColor;
+        }
+        // a reflection off a rough surface is blurred anyway, so it can make do with the blurred copy
+        if (ray.getRoughness() > 0) {
+            return environment.lookupPrefiltered(ray.getDirection());
+        }
+        return environment.lookup(ray.getDirection());
+    }
+
+    // Calculate the colour seen along a ray, given its closest intersection with the scene
+    private ColorRGB shade(RaycastHit.Scene scene, Ray ray, RaycastHit closestHit, int bouncesLeft) {
         // If no object has been hit, return a background colour
         SceneObject object = closestHit.getObjectHit();
         if (object == null){
-            return backgroundColor;
+            return background(scene, ray);
+        }
+        if (pathRecord != null) {
+            pathRecord.add(object);
+            if (closestHit.getInstance() != null) {
+                pathRecord.add(closestHit.getInstance());
+            }
         }
 
         // Otherwise calculate colour at intersection and return
@@ -67,19 +223,20 @@ public class Renderer {
 
         // Get refracted component
         double currentRefractiveIndex = ray.getRefractiveIndex();
-        double newRefractiveIndex = object.getRefractiveIndex();
+        Material material = object.getMaterial();
+        double newRefractiveIndex = material.getRefractiveIndex();
 
         // Illuminate the surface
-        ColorRGB directIllumination = this.illuminate(scene, object, P, N, O, currentRefractiveIndex);
+        ColorRGB directIllumination = this.illuminate(scene, object, closestHit.getInstance(), P, N, O, closestHit, currentRefractiveIndex);
 
         // Get reflectivity
         // will be changed later if there is refraction
-        double FresnelFactorForReflectivity = object.getReflectivity();
+        double FresnelFactorForReflectivity = material.getReflectivity();
 
 
         ColorRGB refractedColour;
         // base cases
-        if (!object.isTransmissive()) {
+        if (material.isOpaque()) {
             refractedColour = new ColorRGB(0); // it does not matter what this is as it will be scaled by transmissance later so will go to 0
         } else if (bouncesLeft == 0) {
             // with 10 bounces, we dont get any of this
@@ -120,11 +277,11 @@ public class Renderer {
                 // get the reflected ray
                 // PO reflected in N gives the direction of the new ray
                 Vector3 direction = O.subtract(P).reflectIn(N).normalised();
-                Vector3 origin = P.add(N.scale(EPSILON));
-                Ray reflectedRay = new Ray(origin,direction, ray.getRefractiveIndex());
+                Vector3 origin = P.add(N.scale(offsetAt(P)));
+                Ray reflectedRay = new Ray(origin,direction, ray.getRefractiveIndex(), material.getRoughness());
 
-                ColorRGB transmittance = object.getTransmittance();
-                ColorRGB transmittanceComplement = new ColorRGB(1).subtract(transmittance);
+                ColorRGB transmittance = material.getTransmittance();
+                ColorRGB transmittanceComplement = material.getTransmittanceComplement();
 
 
 
@@ -137,10 +294,10 @@ public class Renderer {
                 // use the equation given on the wiki page
                 Vector3 v_refract = I.scale(refractive_index_ratio).add(N.scale(refractive_index_ratio*cosThetaI-cosThetaR));
 
-                Ray refractedRay = new Ray(P.add(N.scale(-EPSILON)), v_refract.normalised(), newRefractiveIndex);
+                Ray refractedRay = new Ray(P.add(N.scale(-offsetAt(P))), v_refract.normalised(), newRefractiveIndex);
 
                 // frensel refraction, schlick's approximation
-                FresnelFactorForReflectivity = object.getReflectivity() + (1 - object.getReflectivity()) * Math.pow(1 - cosThetaI,5);
+                FresnelFactorForReflectivity = material.getReflectivity() + (1 - material.getReflectivity()) * Math.pow(1 - cosThetaI,5);
 
                 refractedColour = trace(scene, refractedRay, bouncesLeft-1);
             }
@@ -149,8 +306,8 @@ public class Renderer {
 
         if (bouncesLeft == 0 || FresnelFactorForReflectivity == 0) {
             // Base case
-            ColorRGB transmittance = object.getTransmittance();
-            ColorRGB transmittanceComplement = new ColorRGB(1).subtract(transmittance);
+            ColorRGB transmittance = material.getTransmittance();
+            ColorRGB transmittanceComplement = material.getTransmittanceComplement();
 
             // as bounces are 0, we assume reflectivity of 0
             ColorRGB refractedComponent = refractedColour.scale(transmittance);
@@ -163,8 +320,8 @@ public class Renderer {
             // get the reflected ray
             // PO reflected in N gives the direction of the new ray
             Vector3 direction = O.subtract(P).reflectIn(N).normalised();
-            Vector3 origin = P.add(direction.scale(EPSILON));
-            Ray reflectedRay = new Ray(origin,direction, ray.getRefractiveIndex());
+            Vector3 origin = P.add(direction.scale(offsetAt(P)));
+            Ray reflectedRay = new Ray(origin,direction, ray.getRefractiveIndex(), material.getRoughness());
 
             ColorRGB reflectedIllumination = trace(scene, reflectedRay, bouncesLeft-1);
 
@@ -174,8 +331,8 @@ public class Renderer {
             // refrecated = transmittance(1-reflectedComponent)
 
             // get transmittance
-            ColorRGB transmittance = object.getTransmittance();
-            ColorRGB transmittanceComplement = new ColorRGB(1).subtract(transmittance);
+            ColorRGB transmittance = material.getTransmittance();
+            ColorRGB transmittanceComplement = material.getTransmittanceComplement();
 
             // get components
             ColorRGB reflectedComponent = reflectedIllumination.scale(FresnelFactorForReflectivity);
@@ -190,92 +347,126 @@ public class Renderer {
 
     /*
      * Illuminate a surface on and object in the scene at a given position P and surface normal N,
-     * relative to ray originating at O
+     * relative to ray originating at O. The hit supplies where on the object it is, which is used for its colour
      */
 
 
-    private ColorRGB illuminate(RaycastHit.Scene scene, SceneObject object, Vector3 P, Vector3 N, Vector3 O, double refractiveIndex) {
+    private ColorRGB illuminate(RaycastHit.Scene scene, SceneObject object, SceneObject instance, Vector3 P, Vector3 N, Vector3 O, RaycastHit hit, double refractiveIndex) {
 
         ColorRGB colourToReturn = new ColorRGB(0);
 
         ColorRGB I_a = scene.getAmbientLighting(); // Ambient illumination intensity
 
-        ColorRGB C_diff = object.getColourAt(P); // Diffuse colour defined by the object
+        ColorRGB C_diff = object.getColourAt(hit, surface); // Diffuse colour defined by the object
 
         // Get Phong reflection model coefficients
-        double k_d = object.getPhong_kD();
-        double k_s = object.getPhong_kS();
-        double alpha = object.getPhong_alpha();
+        Material material = object.getMaterial();
 
         // AMBIENT LIGHT TERM
         ColorRGB ambientIntensity = C_diff.scale(I_a);
         colourToReturn = colourToReturn.add(ambientIntensity);
 
-        // Loop over each point light source
+        // surfaces that don't receive shadows skip the shadow rays altogether
+        boolean receivesShadows = object.receivesShadows() && (instance == null || instance.receivesShadows());
+
         List<PointLight> pointLights = scene.getPointLights();
-        for (int i = 0; i < pointLights.size(); i++) {
-            PointLight light = pointLights.get(i); // Select point light
-
-            // get light properites
-            Vector3 LightPos = light.getPosition();
-            double distanceToLight = LightPos.subtract(P).magnitude();
-            ColorRGB C_spec = light.getColour();
-            ColorRGB I = light.getIlluminationAt(distanceToLight);
-            Vector3 L = LightPos.subtract(P).normalised();
-
-            // Loop to do SHADOW_RAY_COUNT casts
-            ColorRGB total_blocked = new ColorRGB(0);
+        if (pointLights.size() <= lightSampleCount) {
+            // Loop over each point light source
+            for (int i = 0; i < pointLights.size(); i++) {
+                PointLight light = pointLights.get(i); // Select point light
+                if (!light.illuminates(object, instance)) {
+                    continue;
+                }
+                colourToReturn = colourToReturn.add(illuminateFrom(scene, light, P, N, O, C_diff, material, refractiveIndex, receivesShadows));
+            }
+        } else {
+            // Too many lights to shadow test them all, so pick some in proportion to how much they are likely to contribute.
+            // Dividing each by the chance of picking it and the number of picks keeps the expected result the same as using every light
+            LightTree lightTree = scene.getLightTree();
+            for (int i = 0; i < lightSampleCount; i++) {
+                LightTree.Sample sample = lightTree.sample(P, N);
+                if (!sample.light.illuminates(object, instance)) {
+                    continue; // an unlinked light contributes nothing, which the weighting of the others already allows for
+                }
+                double weight = 1 / (sample.probability * lightSampleCount);
+                colourToReturn = colourToReturn.add(illuminateFrom(scene, sample.light, P, N, O, C_diff, material, refractiveIndex, receivesShadows).scale(weight));
+            }
+        }
+        return colourToReturn;
+    }
+
+    // The diffuse and specular light reaching P from a single light, scaled by how much of it gets past any objects in the way
+    private ColorRGB illuminateFrom(RaycastHit.Scene scene, PointLight light, Vector3 P, Vector3 N, Vector3 O, ColorRGB C_diff, Material material, double refractiveIndex, boolean receivesShadows) {
+        // Loop to do the light's shadow ray casts, traced together in packets
+        int shadowRays = receivesShadows ? light.getShadowSampleCount(shadowRayCount) : 0;
+        ColorRGB total_blocked = new ColorRGB(0);
 //			int occluded=0;
-            for (int j=0; j<SHADOW_RAY_COUNT; j++) {
-                Vector3 RandomLightPos = light.getPosition().add(Vector3.randomInsideUnitSphere().scale(LIGHT_SIZE));
-                double distanceToRandomLight = RandomLightPos.subtract(P).magnitude();
+        double[] distanceToRandomLight = new double[RayPacket.MAX_SIZE];
+        for (int start=0; start<shadowRays; start+=RayPacket.MAX_SIZE) {
+            shadowPacket.clear();
+            for (int j=start; j<Math.min(shadowRays, start+RayPacket.MAX_SIZE); j++) {
+                Vector3 RandomLightPos = light.sampleShadowPosition(P, j, shadowRays);
+                distanceToRandomLight[shadowPacket.size()] = RandomLightPos.subtract(P).magnitude();
 
                 // Calculate L = from P to light source; LightPos - P
                 Vector3 LRand = RandomLightPos.subtract(P).normalised();
 
                 // Check if there is a shadow, i.e an object in the way, the direction of the ray is oppostie to L.
-                Ray shadowRay = new Ray(P.add(N.scale(EPSILON)),LRand, refractiveIndex);
-                RaycastHit Hit = scene.findClosestIntersection(shadowRay);
-                if (Hit.getDistance() <= distanceToRandomLight) {
-//					occluded++;
-                    ColorRGB transmitted = scene.findCompoundTransmittance(shadowRay, distanceToRandomLight);
+                shadowPacket.add(new Ray(P.add(N.scale(offsetAt(P))),LRand, refractiveIndex));
+            }
+            scene.findClosestOccluders(shadowPacket);
+
+            for (int j=0; j<shadowPacket.size(); j++) {
+                if (shadowPacket.getHitDistance(j) <= distanceToRandomLight[j]) {
+//					    occluded++;
+                    ColorRGB transmitted = scene.findCompoundTransmittance(shadowPacket.getRay(j), distanceToRandomLight[j], pathRecord);
                     ColorRGB blocked = new ColorRGB(1).subtract(transmitted);
 
                     total_blocked = total_blocked.add(blocked);
                 }
             }
-            ColorRGB average_blocked = total_blocked.scale(1/(double)SHADOW_RAY_COUNT);
-            ColorRGB average_passThrough = new ColorRGB(1).subtract(average_blocked);
-
-//			double scalar = ((double) (SHADOW_RAY_COUNT - occluded)) / ((double)SHADOW_RAY_COUNT);
-
-            // Calculate Specular Reflection for this light source
-            // Normal: N
+        }
+        ColorRGB average_blocked = shadowRays > 0 ? total_blocked.scale(1/(double)shadowRays) : total_blocked;
+        ColorRGB average_passThrough = new ColorRGB(1).subtract(average_blocked);
 
-            // Calculate V from P to O = O - P
-            Vector3 V = O.subtract(P).normalised();
-            // Reflect L in N to find R
-            Vector3 R = L.reflectIn(N);
+//			double scalar = ((double) (shadowRays - occluded)) / ((double)shadowRays);
 
-            // Calculate the specular reflection
-            double dotprodRV = R.dot(V);
-            // if the dot product is less than 0 then cos(theta) < 0 and so theta > pi / 2, this means that the ray is hitting from behind.
-            if (dotprodRV > 0) {
-                ColorRGB specularReflectionIntensity = C_spec.scale(I).scale(k_s).scale(Math.pow(dotprodRV,alpha));
-                colourToReturn = colourToReturn.add(specularReflectionIntensity.scale(average_passThrough));
-//				colourToReturn = colourToReturn.add(specularReflectionIntensity.scale(scalar));
+        return phongFrom(light, P, N, O, C_diff, material).scale(average_passThrough);
+    }
 
-            }
+    // The diffuse and specular light reaching P from a single light, ignoring shadows
+    protected ColorRGB phongFrom(PointLight light, Vector3 P, Vector3 N, Vector3 O, ColorRGB C_diff, Material material) {
+        ColorRGB colourToReturn = new ColorRGB(0);
 
-            // Calculate Diffuse Reflection for this light source
-            double dotprodLN = L.dot(N);
-            if (dotprodLN > 0) {
+        // get light properites
+        Vector3 LightPos = light.getPosition();
+        double distanceToLight = LightPos.subtract(P).magnitude();
+        ColorRGB C_spec = light.getColour();
+        ColorRGB I = light.getIlluminationAt(distanceToLight);
+        Vector3 L = LightPos.subtract(P).normalised();
+
+        // Calculate Specular Reflection for this light source
+        // Normal: N
+
+        // Calculate V from P to O = O - P
+        Vector3 V = O.subtract(P).normalised();
+        // Reflect L in N to find R
+        Vector3 R = L.reflectIn(N);
+
+        // Calculate the specular reflection
+        double dotprodRV = R.dot(V);
+        // if the dot product is less than 0 then cos(theta) < 0 and so theta > pi / 2, this means that the ray is hitting from behind.
+        if (dotprodRV > 0) {
+            ColorRGB specularReflectionIntensity = C_spec.scale(I).scale(material.getKS()).scale(material.specular(dotprodRV));
+            colourToReturn = colourToReturn.add(specularReflectionIntensity);
+        }
 
-                ColorRGB diffuseReflectionIntensity = C_diff.scale(I).scale(k_d).scale(dotprodLN);
-                colourToReturn = colourToReturn.add(diffuseReflectionIntensity.scale(average_passThrough));
-//				colourToReturn = colourToReturn.add(diffuseReflectionIntensity.scale(scalar));
+        // Calculate Diffuse Reflection for this light source
+        double dotprodLN = L.dot(N);
+        if (dotprodLN > 0) {
 
-            }
+            ColorRGB diffuseReflectionIntensity = C_diff.scale(I).scale(material.getKD()).scale(dotprodLN);
+            colourToReturn = colourToReturn.add(diffuseReflectionIntensity);
         }
         return colourToReturn;
     }
@@ -287,46 +478,443 @@ public class Renderer {
 
         // Set up image
         BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        render(scene, image, null, null);
+        return image;
+    }
 
-        // Set up camera
-        Camera camera = new Camera(width, height, scene.getCameraOrigin(), scene.getCameraRotation());
-
-        // rotate the forcal plane so that is is in the direction of the camera
-        SquareMatrix3 rotationMatrix = camera.getRotationMatrix();
-        Vector3 DOFPlanePoint = camera.origin.add(rotationMatrix.leftMultiplyVector(new Vector3(0,0,DOF_FOCAL_PLANE)));
-        Vector3 DOFPlaneDirection = rotationMatrix.leftMultiplyVector(new Vector3(0,0,-1)).normalised();
-        Plane FocalPlane = new Plane(DOFPlanePoint, DOFPlaneDirection, new ColorRGB(0));
+    /*
+     * Render into an existing image, only tracing the pixels (index y * width + x) that are marked in dirty,
+     * or every pixel if dirty is null. If paths is not null, the objects touched while tracing each pixel are stored in it.
+     */
+    public void render(RaycastHit.Scene scene, BufferedImage image, boolean[] dirty, SceneObject[][] paths) {
 
-        // Loop over all pixels
-        for (int y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                // point that it would have intersected the focal plane
-                Ray ray = camera.castRay(x, y); // Cast ray through pixel
-                Vector3 pointAtFocalLength = FocalPlane.intersectionWith(ray).getLocation();
+        // Set up camera
+        Camera camera = scene.createCamera(width, height);
+        allocateImageBuffers();
+        renderTiles(scene, camera, image, dirty, paths);
+        antialias(scene, camera, image, dirty, paths);
+        denoise(image);
+    }
 
-                ColorRGB SumlinearRGB = new ColorRGB(0);
-                // cast DOF_RAY_COUNT random rays through our aperature
-                for (int i=0;i<DOF_RAY_COUNT;i++) {
-                    double offsetx = (Math.random()-0.5) * DOF_AMOUNT;
-                    double offsety = (Math.random()-0.5) * DOF_AMOUNT;
+    // Trace the pixels marked in dirty, or every pixel if it is null, a tile at a time on threadCount threads
+    private void renderTiles(RaycastHit.Scene scene, Camera camera, BufferedImage image, boolean[] dirty, SceneObject[][] paths) {
+        // each thread takes the next tile along the curve, so the tiles being rendered at once are next to each other
+        int[][] tiles = tileOrder.tiles(width, height, tileSize > 0 ? tileSize : chooseTileSize(scene));
+        AtomicInteger tilesDone = new AtomicInteger();
+        inParallel(tiles.length, (worker, t) -> {
+            int[] tile = tiles[t];
+            worker.renderTile(scene, camera, tile[0], tile[1], tile[2], tile[3], image, dirty, paths);
+            // Display progress every 10 tiles
+            int done = tilesDone.incrementAndGet();
+            if (done % 10 == 0 || done == tiles.length) {
+                System.out.println(String.format("%.2f", 100 * done / (float) tiles.length) + "% completed");
+            }
+        });
+    }
 
-                    Vector3 rayOrigin = camera.origin.add(new Vector3(offsetx, offsety, 0));
-                    Vector3 rayDirection = pointAtFocalLength.subtract(rayOrigin).normalised();
-                    Ray apertureRay = new Ray(rayOrigin, rayDirection, ray.getRefractiveIndex());
+    /*
+     * Call work for each of count items, on up to threadCount threads that each take the next item as they finish the
+     * last. The first thread works with this renderer and the others with copies of it, so each has its own scratch state
+     */
+    private void inParallel(int count, BiConsumer<Renderer, Integer> work) {
+        AtomicInteger next = new AtomicInteger();
+        IntStream.range(0, Math.max(1, Math.min(threadCount, count))).parallel().forEach(thread -> {
+            Renderer worker = thread == 0 ? this : copy();
+            for (int i = next.getAndIncrement(); i < count; i = next.getAndIncrement()) {
+                work.accept(worker, i);
+            }
+        });
+    }
 
-                    SumlinearRGB = SumlinearRGB.add(trace(scene, apertureRay, bounces));
+    /*
+     * The largest tile size that keeps a tile within TILE_COST while leaving enough tiles for every thread. A pixel is
+     * taken to cost a test against every object for each camera ray and for each shadow ray from where that ray lands,
+     * with each object costing as many simple tests as it says it does
+     */
+    protected int chooseTileSize(RaycastHit.Scene scene) {
+        long rays = isPinhole(scene.createCamera(width, height)) ? 1 : cameraRayCount;
+        long lights = Math.min(scene.getPointLights().size(), lightSampleCount);
+        long rayCost = 0;
+        for (SceneObject object : scene.getObjects()) {
+            rayCost += object.getIntersectionCost();
+        }
+        long pixelCost = rays * rayCost * (1 + lights * shadowRayCount);
+        int size = MAX_TILE_SIZE;
+        while (size > MIN_TILE_SIZE && ((long) size * size * pixelCost > TILE_COST
+                || tileOrder.tiles(width, height, size).length < TILES_PER_THREAD * threadCount)) {
+            size /= 2;
+        }
+        return size;
+    }
 
+    // Render the pixels from (x0, y0) up to but not including (x1, y1)
+    protected void renderTile(RaycastHit.Scene scene, Camera camera, int x0, int y0, int x1, int y1,
+                              BufferedImage image, boolean[] dirty, SceneObject[][] paths) {
+        camera.fillRays(x0, y0, x1, y1, cameraRays);
+        for (int y = y0; y < y1; ++y) {
+            for (int x = x0; x < x1; ++x) {
+                int index = y * width + x;
+                if (dirty != null && !dirty[index]) {
+                    continue;
                 }
-                ColorRGB linearRGB = SumlinearRGB.scale(1/(double)DOF_RAY_COUNT);
+                if (paths != null) {
+                    pathRecord = Collections.newSetFromMap(new IdentityHashMap<>());
+                }
+
+                int i = cameraRays.indexOf(x, y);
+                Vector3 direction = new Vector3(cameraRays.directionX[i], cameraRays.directionY[i], cameraRays.directionZ[i]);
+                Vector3 focus = new Vector3(cameraRays.focusX[i], cameraRays.focusY[i], cameraRays.focusZ[i]);
+                ColorRGB linearRGB = renderPixel(scene, camera, direction, focus, index, cameraRayCount);
+                frame.setColour(index, linearRGB);
                 ColorRGB gammaRGB = tonemap( linearRGB );
                 image.setRGB(x, y, gammaRGB.toRGB()); // Set image colour to traced colour
+
+                if (paths != null) {
+                    paths[index] = pathRecord.toArray(new SceneObject[0]);
+                    pathRecord = null;
+                }
             }
-            // Display progress every 10 lines
-            System.out.println(String.format("%.2f", 100 * y / (float) (height - 1)) + "% completed");
-            if( y % 10 == 9 | y==(height-1) )
-                System.out.println(String.format("%.2f", 100 * y / (float) (height - 1)) + "% completed");
         }
-        return image;
+    }
+
+    // The per-pixel buffers are kept from one render to the next, so a partial re-render can still compare with neighbours
+    protected void allocateImageBuffers() {
+        if (frame == null) {
+            frame = new FrameBuffer(width, height);
+        }
+        if (primaryObjects == null) {
+            primaryObjects = new SceneObject[width * height];
+        }
+    }
+
+    // Render into frame from now on, such as one mapped to a file, instead of a frame of the renderer's own
+    public void setFrameBuffer(FrameBuffer frame) {
+        if (frame.getWidth() != width || frame.getHeight() != height) {
+            throw new IllegalArgumentException("frame is " + frame.getWidth() + "x" + frame.getHeight() + ", not " + width + "x" + height);
+        }
+        this.frame = frame;
+    }
+
+    // Everything about the renderer that changes the colour of a pixel, to tell frames rendered with other settings apart
+    public String getSettingsKey() {
+        return getClass().getSimpleName() + " " + width + "x" + height + " bounces " + bounces + " precision " + precision +
+                " camera rays " + cameraRayCount + " shadow rays " + shadowRayCount + " light samples " + lightSampleCount +
+                " antialiasing " + antialiasing + " denoising " + denoising;
+    }
+
+    /*
+     * Render into image, only tracing the pixels that the frame doesn't hold yet, such as after a render into a mapped frame
+     * was stopped part way. The pixels it does hold are shown as they were traced, and the edges among them are still
+     * anti-aliased if they weren't before. Which objects they saw isn't kept, so anti-aliasing may treat the pixels on the
+     * border with the new ones as edges
+     */
+    public void resume(RaycastHit.Scene scene, BufferedImage image) {
+        allocateImageBuffers();
+        boolean[] dirty = new boolean[width * height];
+        for (int index = 0; index < dirty.length; index++) {
+            if (frame.isTraced(index)) {
+                image.setRGB(index % width, index / width, tonemap(frame.getColour(index)).toRGB());
+            } else {
+                dirty[index] = true;
+            }
+        }
+        Camera camera = scene.createCamera(width, height);
+        renderTiles(scene, camera, image, dirty, null);
+        antialias(scene, camera, image, null, null);
+        denoise(image);
+    }
+
+    // Whether the ray through the centre of the lens has to be traced on its own for every pixel
+    protected boolean needsPrimary() {
+        return antialiasing || denoising;
+    }
+
+    /*
+     * Remember which object the ray through the centre of the lens for the pixel at index saw first and, when denoising,
+     * its albedo, normal and distance
+     */
+    protected void recordPrimary(int index, RaycastHit hit) {
+        if (index < 0) {
+            return;
+        }
+        primaryObjects[index] = hit.getInstance() != null ? hit.getInstance() : hit.getObjectHit();
+        if (denoising) {
+            SceneObject object = hit.getObjectHit();
+            if (object == null) {
+                frame.setMiss(index);
+            } else {
+                frame.setSurface(index, object.getColourAt(hit, surface), hit.getNormal(), hit.getDistance());
+            }
+        }
+    }
+
+    // Replace the whole image with the denoised frame, leaving the frame itself as traced so later partial renders still add up
+    protected void denoise(BufferedImage image) {
+        if (!denoising || denoisingDeferred) {
+            return;
+        }
+        float[] denoised = Denoiser.denoise(frame);
+        for (int index = 0; index < width * height; index++) {
+            if (frame.isTraced(index)) {
+                ColorRGB linearRGB = new ColorRGB(denoised[3 * index], denoised[3 * index + 1], denoised[3 * index + 2]);
+                image.setRGB(index % width, index / width, tonemap(linearRGB).toRGB());
+            }
+        }
+    }
+
+    /*
+     * Add subpixel samples to the pixels of the last render that lie on an edge and haven't had them added yet, only
+     * looking at pixels marked in dirty if it is not null. The pixel's lens rays are shared out between the subpixel positions, at least one each, so an edge
+     * pixel costs about twice as much rather than five times. Every ray counts the same in the average, so the original
+     * colour is weighted by the number of rays it took. The edge pixels are shared out between threads like tiles
+     */
+    protected void antialias(RaycastHit.Scene scene, Camera camera, BufferedImage image, boolean[] dirty, SceneObject[][] paths) {
+        if (!antialiasing) {
+            return;
+        }
+        boolean[] edges = findEdges(dirty);
+        int[] edgePixels = IntStream.range(0, edges.length).filter(index -> edges[index]).toArray();
+        inParallel(edgePixels.length, (worker, i) -> worker.antialiasPixel(scene, camera, image, edgePixels[i], paths));
+    }
+
+    private void antialiasPixel(RaycastHit.Scene scene, Camera camera, BufferedImage image, int index, SceneObject[][] paths) {
+        int x = index % width;
+        int y = index / width;
+        if (paths != null) {
+            pathRecord = Collections.newSetFromMap(new IdentityHashMap<>());
+            Collections.addAll(pathRecord, paths[index]);
+        }
+
+        int baseRays = isPinhole(camera) ? 1 : cameraRayCount;
+        int raysPerOffset = Math.max(1, baseRays / AA_OFFSETS.length);
+        ColorRGB sum = frame.getColour(index).scale(baseRays);
+        for (double[] offset : AA_OFFSETS) {
+            Vector3 direction = camera.directionThrough(x + offset[0], y + offset[1]);
+            ColorRGB subpixel = renderPixel(scene, camera, direction.normalised(), camera.focusAlong(direction), -1, raysPerOffset);
+            sum = sum.add(subpixel.scale(raysPerOffset));
+        }
+        ColorRGB linearRGB = sum.scale(1 / (double) (baseRays + raysPerOffset * AA_OFFSETS.length));
+        frame.setColour(index, linearRGB);
+        frame.setAntialiased(index);
+        image.setRGB(x, y, tonemap(linearRGB).toRGB());
+
+        if (paths != null) {
+            paths[index] = pathRecord.toArray(new SceneObject[0]);
+            pathRecord = null;
+        }
+    }
+
+    // The pixels that differ enough from the one to their right or below them, both of each such pair are marked
+    private boolean[] findEdges(boolean[] dirty) {
+        double[] brightness = new double[width * height];
+        for (int i = 0; i < brightness.length; i++) {
+            if (frame.isTraced(i)) {
+                ColorRGB displayed = tonemap(frame.getColour(i));
+                brightness[i] = brightness(displayed);
+            }
+        }
+
+        boolean[] edges = new boolean[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int index = y * width + x;
+                if (x + 1 < width && differ(index, index + 1, brightness)) {
+                    edges[index] = edges[index + 1] = true;
+                }
+                if (y + 1 < height && differ(index, index + width, brightness)) {
+                    edges[index] = edges[index + width] = true;
+                }
+            }
+        }
+        for (int i = 0; i < edges.length; i++) {
+            edges[i] &= (dirty == null || dirty[i]) && !frame.isAntialiased(i);
+        }
+        return edges;
+    }
+
+    private boolean differ(int a, int b, double[] brightness) {
+        if (!frame.isTraced(a) || !frame.isTraced(b)) {
+            return false; // not traced yet
+        }
+        return primaryObjects[a] != primaryObjects[b] || Math.abs(brightness[a] - brightness[b]) > AA_CONTRAST;
+    }
+
+    // The Adam7 interlacing passes, as the first pixel traced in each 8x8 block followed by the step between them across and down
+    private static final int[][] INTERLACE_PASSES = {
+            {0, 0, 8, 8}, {4, 0, 8, 8}, {0, 4, 4, 8}, {2, 0, 4, 4}, {0, 2, 2, 4}, {1, 0, 2, 2}, {0, 1, 1, 2}};
+    // The width and height of the block of pixels that each traced pixel stands in for once each pass is done
+    private static final int[][] INTERLACE_BLOCKS = {{8, 8}, {4, 8}, {4, 4}, {2, 4}, {2, 2}, {1, 2}, {1, 1}};
+
+    /*
+     * Render into image a little at a time, calling onPass with it after each pass so framing and lighting can be checked
+     * long before the end. The first pass is a single ray with no bounces for one pixel in every previewDivisor by
+     * previewDivisor block, traced into a frame of its own so the rough colours never reach the real frame. Then come the
+     * Adam7 passes at full quality, which never trace a pixel twice, so the last pass leaves the image render would, with
+     * the edges anti-aliased and the noise smoothed once every pixel is in. Pixels the frame already holds, such as from a
+     * render into a mapped frame that was stopped, are shown as they are instead of being traced. Untraced pixels are
+     * filled from the traced pixel at the top left of their block
+     */
+    public void renderProgressive(RaycastHit.Scene scene, BufferedImage image, int previewDivisor, Consumer<BufferedImage> onPass) {
+        allocateImageBuffers();
+        boolean[] pass = new boolean[width * height];
+        // until the last pass the neighbours edges are found from and the denoiser blurs over aren't all there, though the
+        // denoiser's guides are still recorded as each pixel is traced
+        boolean fullAntialiasing = antialiasing;
+        antialiasing = false;
+        denoisingDeferred = true;
+
+        markPass(pass, 0, 0, previewDivisor, previewDivisor);
+        skipHeld(pass, image);
+        FrameBuffer fullFrame = frame;
+        int fullCameraRays = cameraRayCount;
+        int fullBounces = bounces;
+        frame = new FrameBuffer(width, height);
+        cameraRayCount = 1;
+        bounces = 0;
+        try {
+            render(scene, image, pass, null);
+        } finally {
+            frame = fullFrame;
+            cameraRayCount = fullCameraRays;
+            bounces = fullBounces;
+        }
+        fillBlocks(image, previewDivisor, previewDivisor);
+        onPass.accept(image);
+
+        try {
+            for (int i = 0; i < INTERLACE_PASSES.length; i++) {
+                int[] interlace = INTERLACE_PASSES[i];
+                Arrays.fill(pass, false);
+                markPass(pass, interlace[0], interlace[1], interlace[2], interlace[3]);
+                skipHeld(pass, image);
+                render(scene, image, pass, null);
+                fillBlocks(image, INTERLACE_BLOCKS[i][0], INTERLACE_BLOCKS[i][1]);
+                onPass.accept(image);
+            }
+        } finally {
+            antialiasing = fullAntialiasing;
+            denoisingDeferred = false;
+        }
+        if (antialiasing) {
+            antialias(scene, scene.createCamera(width, height), image, null, null);
+            onPass.accept(image);
+        }
+        if (denoising) {
+            denoise(image);
+            onPass.accept(image);
+        }
+    }
+
+    // Unmark the pixels of a pass that the frame already holds, showing them in image as they were traced
+    private void skipHeld(boolean[] pass, BufferedImage image) {
+        for (int index = 0; index < pass.length; index++) {
+            if (pass[index] && frame.isTraced(index)) {
+                image.setRGB(index % width, index / width, tonemap(frame.getColour(index)).toRGB());
+                pass[index] = false;
+            }
+        }
+    }
+
+    // Mark the pixels from (x0, y0) onwards in steps of stepX across and stepY down
+    private void markPass(boolean[] pass, int x0, int y0, int stepX, int stepY) {
+        for (int y = y0; y < height; y += stepY) {
+            for (int x = x0; x < width; x += stepX) {
+                pass[y * width + x] = true;
+            }
+        }
+    }
+
+    // Copy the top left pixel of every blockWidth by blockHeight block over the rest of the block
+    private void fillBlocks(BufferedImage image, int blockWidth, int blockHeight) {
+        if (blockWidth == 1 && blockHeight == 1) {
+            return;
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int anchorX = x - x % blockWidth;
+                int anchorY = y - y % blockHeight;
+                if (anchorX != x || anchorY != y) {
+                    image.setRGB(x, y, image.getRGB(anchorX, anchorY));
+                }
+            }
+        }
+    }
+
+    /*
+     * Trace a single ray through the centre of the aperture for every pixel and return the objects each one touched.
+     * This is a cheap way to find which pixels a newly added object could show up in. Rows are shared out between threads
+     */
+    public SceneObject[][] probePaths(RaycastHit.Scene scene) {
+        Camera camera = scene.createCamera(width, height);
+        SceneObject[][] paths = new SceneObject[width * height][];
+
+        inParallel(height, (worker, y) -> {
+            for (int x = 0; x < width; ++x) {
+                worker.pathRecord = Collections.newSetFromMap(new IdentityHashMap<>());
+                worker.trace(scene, camera.castRay(x, y), bounces);
+                paths[y * width + x] = worker.pathRecord.toArray(new SceneObject[0]);
+            }
+            worker.pathRecord = null;
+        });
+        return paths;
+    }
+
+    /*
+     * Trace rayCount rays through the lens towards pointAtFocalLength, the point the ray from the centre of the lens
+     * along direction meets the focal plane, and return the average linear colour. The object seen along direction and
+     * the variance of the rays' brightness are recorded for the pixel at index, unless it is negative
+     */
+    private ColorRGB renderPixel(RaycastHit.Scene scene, Camera camera, Vector3 direction, Vector3 pointAtFocalLength, int index, int rayCount) {
+        if (isPinhole(camera)) {
+            Ray ray = new Ray(camera.origin, direction, Camera.START_REFRACTIVE_INDEX);
+            RaycastHit hit = scene.findClosestIntersection(ray);
+            recordPrimary(index, hit);
+            if (index >= 0) {
+                frame.setVariance(index, 0);
+            }
+            return shade(scene, ray, hit, bounces);
+        }
+        if (index >= 0 && needsPrimary()) {
+            recordPrimary(index, scene.findClosestIntersection(new Ray(camera.origin, direction, Camera.START_REFRACTIVE_INDEX)));
+        }
+
+        ColorRGB SumlinearRGB = new ColorRGB(0);
+        double sumBrightness = 0, sumSquaredBrightness = 0;
+        // cast rayCount random rays through our aperature, they all converge on the same point so are traced as packets
+        for (int start=0;start<rayCount;start+=RayPacket.MAX_SIZE) {
+            primaryPacket.clear();
+            for (int i=start;i<Math.min(rayCount, start+RayPacket.MAX_SIZE);i++) {
+                Vector3 rayOrigin = camera.sampleLens();
+                Vector3 rayDirection = pointAtFocalLength.subtract(rayOrigin).normalised();
+                primaryPacket.add(new Ray(rayOrigin, rayDirection, Camera.START_REFRACTIVE_INDEX));
+            }
+            scene.findClosestIntersections(primaryPacket);
+
+            for (int i=0;i<primaryPacket.size();i++) {
+                ColorRGB sample = shade(scene, primaryPacket.getRay(i), primaryPacket.getHit(i), bounces);
+                SumlinearRGB = SumlinearRGB.add(sample);
+                double sampleBrightness = brightness(sample);
+                sumBrightness += sampleBrightness;
+                sumSquaredBrightness += sampleBrightness * sampleBrightness;
+            }
+        }
+        if (index >= 0) {
+            frame.setVariance(index, sampleVariance(sumBrightness, sumSquaredBrightness, rayCount));
+        }
+        return SumlinearRGB.scale(1/(double)rayCount);
+    }
+
+    // The relative luminance of a colour
+    protected static double brightness(ColorRGB c) {
+        return 0.2126 * c.r + 0.7152 * c.g + 0.0722 * c.b;
+    }
+
+    // The unbiased variance of count samples from their sum and the sum of their squares, 0 for a single sample
+    protected static double sampleVariance(double sum, double sumOfSquares, int count) {
+        if (count < 2) {
+            return 0;
+        }
+        return Math.max(0, (sumOfSquares - sum * sum / count) / (count - 1));
     }
 
 
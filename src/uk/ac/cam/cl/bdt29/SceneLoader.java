@@ -1,9 +1,11 @@
 package uk.ac.cam.cl.bdt29;
 
 import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 import uk.ac.cam.cl.bdt29.data_structures.ColorRGB;
+import uk.ac.cam.cl.bdt29.data_structures.Transform;
 import uk.ac.cam.cl.bdt29.data_structures.Vector3;
 import uk.ac.cam.cl.bdt29.elements.*;
 
@@ -11,13 +13,47 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
 public class SceneLoader {
     // Loads our scene from an XML file
 
     private RaycastHit.Scene scene;
 
+    // How the packed sphere sets and meshes store their geometry
+    private final Precision precision;
+
+    // Plain spheres are collected and packed into a single SphereSet once the whole file has been read
+    private static final int MIN_SPHERE_SET_SIZE = 4;
+    private final List<Sphere> plainSpheres = new LinkedList<>();
+
+    // Groups of objects declared with <define name="...">, which <instance ref="..."> elements place in the scene
+    private final Map<String, List<SceneObject>> defines = new HashMap<>();
+    private final Map<String, String> defineKeys = new HashMap<>();
+
+    // Materials declared with <material name="...">, shared by every element with a matching material="..." attribute
+    private final Map<String, Material> materials = new HashMap<>();
+    private final Map<String, String> materialKeys = new HashMap<>();
+
+    // Signatures of the elements the scene was built from, so that a reloaded scene can be diffed against this one
+    private final Map<SceneObject, String> objectKeys = new IdentityHashMap<>();
+    private final StringBuilder lightsKey = new StringBuilder();
+    private final StringBuilder settingsKey = new StringBuilder();
+
     public SceneLoader(String filename) {
+        this(filename, Precision.DOUBLE);
+    }
+
+    public SceneLoader(String filename, Precision precision) {
+        this.precision = precision;
         scene = new RaycastHit.Scene();
 
         Element document = null;
@@ -35,9 +71,13 @@ public class SceneLoader {
         if (document.getNodeName() != "scene")
             throw new RuntimeException("scene file does not contain a scene element");
 
-        NodeList elements = document.getElementsByTagName("*");
+        NodeList elements = document.getChildNodes();
         for (int i = 0; i < elements.getLength(); ++i) {
+            if (!(elements.item(i) instanceof Element)) {
+                continue; // skip text and comments
+            }
             Element element = (Element) elements.item(i);
+            String key = getElementKey(element);
             switch (element.getNodeName()) {
 
                 case "camera":
@@ -45,103 +85,520 @@ public class SceneLoader {
                     Vector3 rotation = getRotation(element);
                     scene.setCameraOrigin(origin);
                     scene.setCameraRotation(rotation);
+                    // the lens diameter and the distance that is in focus, in world units, an aperture of 0 is a pinhole
+                    double aperture = getDouble(element, "aperture", Camera.DEFAULT_APERTURE);
+                    double focusDistance = getDouble(element, "focus-distance", Camera.DEFAULT_FOCUS_DISTANCE);
+                    if (aperture < 0 || focusDistance <= 0) {
+                        throw new RuntimeException("camera aperture must not be negative and focus distance must be positive");
+                    }
+                    scene.setCameraAperture(aperture);
+                    scene.setCameraFocusDistance(focusDistance);
+                    settingsKey.append(key).append('\n');
 
                     break;
 
-                case "sphere":
-                    // get a sphere with fallback elements of null
-                    Sphere sphere = new Sphere(
-                            getPosition(element),
-                            getDouble(element, "radius", 1),
-                            getColour(element),
-                            getDouble(element, "kD", Sphere.DEFAULT_SPHERE_KD),
-                            getDouble(element, "kS", Sphere.DEFAULT_SPHERE_KS),
-                            getDouble(element, "alphaS", Sphere.DEFAULT_SPHERE_ALPHA),
-                            getDouble(element, "reflectivity", Sphere.DEFAULT_SPHERE_REFLECTIVITY),
-                            getTransmittance(element),
-                            getDouble(element, "refractive_index", Sphere.DEFAULT_SPHERE_REFRACTIVE_INDEX),
-                            getString(element, "bump-map", null),
-                            getString(element, "texture-map", null)
-                    );
-                    scene.addObject(sphere);
-                    break;
-
-                case "plane":
-                    Plane plane = new Plane(
-                            getPosition(element),
-                            getNormal(element),
-                            getColour(element),
-                            getDouble(element, "kD", Plane.DEFAULT_PLANE_KD),
-                            getDouble(element, "kS", Plane.DEFAULT_PLANE_KS),
-                            getDouble(element, "alphaS", Plane.DEFAULT_PLANE_ALPHA),
-                            getDouble(element, "reflectivity", Plane.DEFAULT_PLANE_REFLECTIVITY),
-                            getString(element, "bump-map", null),
-                            getString(element, "texture-map", null),
-                            getDouble(element,"texture-scale", 10),
-                            getDouble(element, "texture-rotation", 0),
-                            getPlaneBoundingCentre(element, null),
-                            getDouble(element, "bounding-radius", Double.POSITIVE_INFINITY),
-                            getString(element, "bounding-operator","<")
-                    );
-                    scene.addObject(plane);
+                case "point-light":
+                    addLight(new PointLight(getPosition(element), getColour(element),
+                            getDouble(element, "intensity", 100)), element, key);
                     break;
 
-                case "cone":
-                    Cone cone = new Cone(
-                            getPosition(element),
-                            getAxis(element),
-                            getDouble(element, "angle", Cone.DEFAULT_CONE_ANGLE),
-                            getDouble(element, "length", Cone.DEFAULT_CONE_LENGTH),
-                            getColour(element),
-                            getDouble(element, "kD", Cone.DEFAULT_CONE_KD),
-                            getDouble(element, "kS", Cone.DEFAULT_CONE_KS),
-                            getDouble(element, "alphaS", Cone.DEFAULT_CONE_ALPHA),
-                            getDouble(element, "reflectivity", Cone.DEFAULT_CONE_REFLECTIVITY),
-                            getString(element, "texture-map", null)
-                    );
-                    scene.addObject(cone);
+                case "sphere-light":
+                    addLight(new SphereLight(getPosition(element), getDouble(element, "radius", 0.1),
+                            getColour(element), getDouble(element, "intensity", 100), getInt(element, "samples", 0)), element, key);
                     break;
 
-                case "cylinder":
-                    Cylinder cylinder = new Cylinder(
-                            getPosition(element),
-                            getAxis(element),
-                            getDouble(element, "length", Cylinder.DEFAULT_CYLINDER_LENGTH),
-                            getDouble(element, "radius", Cylinder.DEFAULT_CYLINDER_RADUS),
-                            getColour(element),
-                            getDouble(element, "kD", Cylinder.DEFAULT_CYLINDER_KD),
-                            getDouble(element, "kS", Cylinder.DEFAULT_CYLINDER_KS),
-                            getDouble(element, "alphaS", Cylinder.DEFAULT_CYLINDER_ALPHA),
-                            getDouble(element, "reflectivity", Cylinder.DEFAULT_CYLINDER_REFLECTIVITY),
-                            getString(element, "texture-map", null)
-                    );
-                    scene.addObject(cylinder);
+                case "disk-light":
+                    addLight(new DiskLight(getPosition(element), getNormal(element), getDouble(element, "radius", 0.1),
+                            getColour(element), getDouble(element, "intensity", 100), getInt(element, "samples", 0)), element, key);
                     break;
 
-                case "point-light":
-                    PointLight light = new PointLight(getPosition(element), getColour(element),
-                            getDouble(element, "intensity", 100));
-                    scene.addPointLight(light);
+                case "rect-light":
+                    addLight(new RectangleLight(getPosition(element), getEdge(element, "u"), getEdge(element, "v"),
+                            getColour(element), getDouble(element, "intensity", 100), getInt(element, "samples", 0)), element, key);
                     break;
 
                 case "ambient-light":
                     scene.setAmbientLight(getColour(element).scale(getDouble(element, "intensity", 1)));
+                    settingsKey.append(key).append('\n');
                     break;
 
                 case "background-colour":
                     scene.setBackgroundColour(getColour(element));
+                    settingsKey.append(key).append('\n');
+                    break;
+
+                case "environment-map":
+                    String map = getString(element, "texture-map", null);
+                    if (map == null) {
+                        throw new RuntimeException("environment-map element without a texture-map");
+                    }
+                    scene.setEnvironmentMap(new EnvironmentMap(map, getDouble(element, "intensity", 1),
+                            getDouble(element, "rotation", 0)));
+                    settingsKey.append(key).append('\n');
+                    break;
+
+                case "material":
+                    // a named material which objects can share with material="..."
+                    String materialName = element.getAttribute("name");
+                    if (materialName.equals("")) {
+                        throw new RuntimeException("material element without a name");
+                    }
+                    materials.put(materialName, new Material(
+                            getColour(element),
+                            getDouble(element, "kD", Material.DEFAULT_KD),
+                            getDouble(element, "kS", Material.DEFAULT_KS),
+                            getDouble(element, "alphaS", Material.DEFAULT_ALPHA),
+                            getDouble(element, "reflectivity", Material.DEFAULT_REFLECTIVITY),
+                            getTransmittance(element),
+                            getDouble(element, "refractive_index", Material.DEFAULT_REFRACTIVE_INDEX),
+                            getDouble(element, "roughness", 0)));
+                    materialKeys.put(materialName, key);
+                    break;
+
+                case "define":
+                    // a named group of objects which is only rendered through instances
+                    String name = element.getAttribute("name");
+                    if (name.equals("")) {
+                        throw new RuntimeException("define element without a name");
+                    }
+                    StringBuilder groupKey = new StringBuilder();
+                    defines.put(name, loadGroup(element, groupKey));
+                    defineKeys.put(name, groupKey.toString());
                     break;
 
                 default:
-                    throw new RuntimeException("unknown object tag: " + element.getNodeName());
+                    for (SceneObject object : loadObjects(element, key)) {
+                        if (isPackable(object)) {
+                            plainSpheres.add((Sphere) object);
+                        } else {
+                            scene.addObject(object);
+                        }
+                    }
+            }
+        }
+
+        for (SceneObject object : packSpheres(plainSpheres)) {
+            scene.addObject(object);
+        }
+
+        scene.prepare();
+    }
+
+    // Load an element that makes one or more objects
+    private List<SceneObject> loadObjects(Element element, String key) {
+        switch (element.getNodeName()) {
+            case "scatter":
+                return loadScatter(element, key);
+            case "repeat":
+                return loadRepeat(element, key);
+            default:
+                List<SceneObject> objects = new LinkedList<>();
+                objects.add(loadObject(element, key));
+                return objects;
+        }
+    }
+
+    /*
+     * <scatter> places count copies of its one child at random points inside a sphere (radius) or box (sx, sy, sz are half
+     * its size) centred on x, y, z, optionally clipped by min-x ... max-z. Each copy is scaled by a random amount between
+     * min-scale and max-scale. The same seed always gives the same copies
+     */
+    private List<SceneObject> loadScatter(Element element, String key) {
+        SceneObject template = loadTemplate(element, key);
+        String templateKey = objectKeys.remove(template);
+
+        Random random = new Random(getInt(element, "seed", 0));
+        int count = getInt(element, "count", 1);
+        Vector3 centre = getPosition(element);
+        boolean box = getString(element, "shape", "sphere").equals("box");
+        Vector3 halfSize = box
+                ? new Vector3(getDouble(element, "sx", 1), getDouble(element, "sy", 1), getDouble(element, "sz", 1))
+                : new Vector3(getDouble(element, "radius", 1));
+        Vector3 clipMin = new Vector3(getDouble(element, "min-x", Double.NEGATIVE_INFINITY),
+                getDouble(element, "min-y", Double.NEGATIVE_INFINITY), getDouble(element, "min-z", Double.NEGATIVE_INFINITY));
+        Vector3 clipMax = new Vector3(getDouble(element, "max-x", Double.POSITIVE_INFINITY),
+                getDouble(element, "max-y", Double.POSITIVE_INFINITY), getDouble(element, "max-z", Double.POSITIVE_INFINITY));
+        double minScale = getDouble(element, "min-scale", 1);
+        double maxScale = getDouble(element, "max-scale", minScale);
+
+        List<SceneObject> objects = new LinkedList<>();
+        for (int i = 0; i < count; i++) {
+            // pick points in the bounding cube until one lands inside the volume
+            Vector3 point;
+            int attempts = 0;
+            do {
+                if (++attempts > 1000) {
+                    throw new RuntimeException("scatter volume is empty");
+                }
+                Vector3 unit = new Vector3(2 * random.nextDouble() - 1, 2 * random.nextDouble() - 1, 2 * random.nextDouble() - 1);
+                point = centre.add(unit.scale(halfSize));
+                if (!box && unit.dot(unit) > 1) {
+                    point = null;
+                }
+            } while (point == null || !insideBox(point, clipMin, clipMax));
+
+            double scale = minScale + (maxScale - minScale) * random.nextDouble();
+            SceneObject copy = copyTemplate(template, Transform.IDENTITY, scale, point);
+            objectKeys.put(copy, key + templateKey + "#" + i);
+            objects.add(copy);
+        }
+        return objects;
+    }
+
+    /*
+     * <repeat> places count copies of its one child, copy i rotated by i times rx, ry, rz degrees about x, y, z and then
+     * moved by i times dx, dy, dz
+     */
+    private List<SceneObject> loadRepeat(Element element, String key) {
+        SceneObject template = loadTemplate(element, key);
+        String templateKey = objectKeys.remove(template);
+
+        int count = getInt(element, "count", 1);
+        Vector3 centre = getPosition(element);
+        Vector3 step = new Vector3(getDouble(element, "dx", 0), getDouble(element, "dy", 0), getDouble(element, "dz", 0));
+        Vector3 turn = getRotation(element);
+
+        List<SceneObject> objects = new LinkedList<>();
+        for (int i = 0; i < count; i++) {
+            Transform rotation = Transform.rotation(turn.scale(i));
+            Vector3 translation = centre.subtract(rotation.applyToVector(centre)).add(step.scale(i));
+            SceneObject copy = copyTemplate(template, rotation, 1, translation);
+            objectKeys.put(copy, key + templateKey + "#" + i);
+            objects.add(copy);
+        }
+        return objects;
+    }
+
+    // The single sphere or instance inside a scatter or repeat element
+    private SceneObject loadTemplate(Element parent, String key) {
+        Element template = null;
+        NodeList children = parent.getChildNodes();
+        for (int i = 0; i < children.getLength(); ++i) {
+            if (children.item(i) instanceof Element) {
+                if (template != null) {
+                    throw new RuntimeException(parent.getNodeName() + " element with more than one template");
+                }
+                template = (Element) children.item(i);
+            }
+        }
+        if (template == null) {
+            throw new RuntimeException("empty " + parent.getNodeName() + " element");
+        }
+        if (!template.getNodeName().equals("sphere") && !template.getNodeName().equals("instance")) {
+            throw new RuntimeException(parent.getNodeName() + " template must be a sphere or an instance");
+        }
+        return loadObject(template, getElementKey(template));
+    }
+
+    private SceneObject copyTemplate(SceneObject template, Transform rotation, double scale, Vector3 translation) {
+        if (template instanceof Sphere) {
+            return new Sphere((Sphere) template, rotation, scale, translation);
+        }
+        return new Instance((Instance) template, rotation, scale, translation);
+    }
+
+    private boolean insideBox(Vector3 point, Vector3 min, Vector3 max) {
+        return point.x >= min.x && point.y >= min.y && point.z >= min.z
+                && point.x <= max.x && point.y <= max.y && point.z <= max.z;
+    }
+
+    // Load a single object element, recording the key it was loaded from
+    private SceneObject loadObject(Element element, String key) {
+        SceneObject object;
+        switch (element.getNodeName()) {
+
+            case "sphere":
+                // get a sphere with fallback elements of null
+                object = new Sphere(
+                        getPosition(element),
+                        getDouble(element, "radius", 1),
+                        getColour(element),
+                        getDouble(element, "kD", Sphere.DEFAULT_SPHERE_KD),
+                        getDouble(element, "kS", Sphere.DEFAULT_SPHERE_KS),
+                        getDouble(element, "alphaS", Sphere.DEFAULT_SPHERE_ALPHA),
+                        getDouble(element, "reflectivity", Sphere.DEFAULT_SPHERE_REFLECTIVITY),
+                        getTransmittance(element),
+                        getDouble(element, "refractive_index", Sphere.DEFAULT_SPHERE_REFRACTIVE_INDEX),
+                        getString(element, "bump-map", null),
+                        getString(element, "texture-map", null)
+                );
+                break;
+
+            case "plane":
+                object = loadBoundedPlane(element);
+                if (object != null) {
+                    break;
+                }
+                object = new Plane(
+                        getPosition(element),
+                        getNormal(element),
+                        getColour(element),
+                        getDouble(element, "kD", Plane.DEFAULT_PLANE_KD),
+                        getDouble(element, "kS", Plane.DEFAULT_PLANE_KS),
+                        getDouble(element, "alphaS", Plane.DEFAULT_PLANE_ALPHA),
+                        getDouble(element, "reflectivity", Plane.DEFAULT_PLANE_REFLECTIVITY),
+                        getString(element, "bump-map", null),
+                        getString(element, "texture-map", null),
+                        getDouble(element,"texture-scale", 10),
+                        getDouble(element, "texture-rotation", 0),
+                        getPlaneBoundingCentre(element, null),
+                        getDouble(element, "bounding-radius", Double.POSITIVE_INFINITY),
+                        getString(element, "bounding-operator","<")
+                );
+                break;
+
+            case "disk":
+                object = new Disk(
+                        getPosition(element),
+                        getNormal(element),
+                        getPosition(element),
+                        getDouble(element, "radius", 1),
+                        getColour(element),
+                        getDouble(element, "kD", Plane.DEFAULT_PLANE_KD),
+                        getDouble(element, "kS", Plane.DEFAULT_PLANE_KS),
+                        getDouble(element, "alphaS", Plane.DEFAULT_PLANE_ALPHA),
+                        getDouble(element, "reflectivity", Plane.DEFAULT_PLANE_REFLECTIVITY),
+                        getString(element, "bump-map", null),
+                        getString(element, "texture-map", null),
+                        getDouble(element,"texture-scale", 10),
+                        getDouble(element, "texture-rotation", 0)
+                );
+                break;
+
+            case "rectangle":
+                object = new Rectangle(
+                        getPosition(element),
+                        getEdge(element, "u"),
+                        getEdge(element, "v"),
+                        getColour(element),
+                        getDouble(element, "kD", Plane.DEFAULT_PLANE_KD),
+                        getDouble(element, "kS", Plane.DEFAULT_PLANE_KS),
+                        getDouble(element, "alphaS", Plane.DEFAULT_PLANE_ALPHA),
+                        getDouble(element, "reflectivity", Plane.DEFAULT_PLANE_REFLECTIVITY),
+                        getString(element, "bump-map", null),
+                        getString(element, "texture-map", null),
+                        getDouble(element,"texture-scale", 10),
+                        getDouble(element, "texture-rotation", 0)
+                );
+                break;
+
+            case "quad":
+                object = new Quad(
+                        getPosition(element),
+                        getEdge(element, "u"),
+                        getEdge(element, "v"),
+                        getColour(element),
+                        getDouble(element, "kD", Plane.DEFAULT_PLANE_KD),
+                        getDouble(element, "kS", Plane.DEFAULT_PLANE_KS),
+                        getDouble(element, "alphaS", Plane.DEFAULT_PLANE_ALPHA),
+                        getDouble(element, "reflectivity", Plane.DEFAULT_PLANE_REFLECTIVITY),
+                        getString(element, "bump-map", null),
+                        getString(element, "texture-map", null),
+                        getDouble(element,"texture-scale", 10),
+                        getDouble(element, "texture-rotation", 0)
+                );
+                break;
+
+            case "cone":
+                object = new Cone(
+                        getPosition(element),
+                        getAxis(element),
+                        getDouble(element, "angle", Cone.DEFAULT_CONE_ANGLE),
+                        getDouble(element, "length", Cone.DEFAULT_CONE_LENGTH),
+                        getColour(element),
+                        getDouble(element, "kD", Cone.DEFAULT_CONE_KD),
+                        getDouble(element, "kS", Cone.DEFAULT_CONE_KS),
+                        getDouble(element, "alphaS", Cone.DEFAULT_CONE_ALPHA),
+                        getDouble(element, "reflectivity", Cone.DEFAULT_CONE_REFLECTIVITY),
+                        getString(element, "texture-map", null)
+                );
+                break;
+
+            case "cylinder":
+                object = new Cylinder(
+                        getPosition(element),
+                        getAxis(element),
+                        getDouble(element, "length", Cylinder.DEFAULT_CYLINDER_LENGTH),
+                        getDouble(element, "radius", Cylinder.DEFAULT_CYLINDER_RADUS),
+                        getColour(element),
+                        getDouble(element, "kD", Cylinder.DEFAULT_CYLINDER_KD),
+                        getDouble(element, "kS", Cylinder.DEFAULT_CYLINDER_KS),
+                        getDouble(element, "alphaS", Cylinder.DEFAULT_CYLINDER_ALPHA),
+                        getDouble(element, "reflectivity", Cylinder.DEFAULT_CYLINDER_REFLECTIVITY),
+                        getString(element, "texture-map", null)
+                );
+                break;
+
+            case "mesh":
+                String obj = getString(element, "obj", null);
+                if (obj == null) {
+                    throw new RuntimeException("mesh element without an obj file");
+                }
+                object = new TriangleMesh(
+                        obj,
+                        getPosition(element),
+                        getRotation(element),
+                        getDouble(element, "scale", 1),
+                        getColour(element),
+                        getDouble(element, "kD", TriangleMesh.DEFAULT_MESH_KD),
+                        getDouble(element, "kS", TriangleMesh.DEFAULT_MESH_KS),
+                        getDouble(element, "alphaS", TriangleMesh.DEFAULT_MESH_ALPHA),
+                        getDouble(element, "reflectivity", TriangleMesh.DEFAULT_MESH_REFLECTIVITY),
+                        precision
+                );
+                break;
+
+            case "instance":
+                String ref = element.getAttribute("ref");
+                if (!defines.containsKey(ref)) {
+                    throw new RuntimeException("instance of unknown definition: " + ref);
+                }
+                object = new Instance(defines.get(ref), getPosition(element), getRotation(element), getDouble(element, "scale", 1));
+                // editing the definition changes every instance of it
+                key = key + defineKeys.get(ref);
+                break;
+
+            default:
+                throw new RuntimeException("unknown object tag: " + element.getNodeName());
+        }
+        // a shared material replaces the surface attributes of the element itself
+        String materialName = element.getAttribute("material");
+        if (!materialName.equals("")) {
+            if (!materials.containsKey(materialName)) {
+                throw new RuntimeException("unknown material: " + materialName);
             }
+            object.setMaterial(materials.get(materialName));
+            // editing the material changes every object using it
+            key = key + materialKeys.get(materialName);
+        } else if (element.hasAttribute("roughness")) {
+            object.setMaterial(object.getMaterial().withRoughness(getDouble(element, "roughness", 0)));
         }
+        String name = element.getAttribute("name");
+        object.setName(name.equals("") ? null : name);
+        object.setCastsShadows(getBoolean(element, "casts-shadows", true));
+        object.setReceivesShadows(getBoolean(element, "receives-shadows", true));
+        objectKeys.put(object, key);
+        return object;
+    }
+
+    /*
+     * A plane clipped to the inside of a bounding sphere is just a disk: centred where the sphere's centre projects onto the plane,
+     * with the radius of the circle the sphere cuts out of it. Returns null for planes that aren't bounded that way
+     */
+    private Disk loadBoundedPlane(Element element) {
+        Vector3 boundingCentre = getPlaneBoundingCentre(element, null);
+        double boundingRadius = getDouble(element, "bounding-radius", Double.POSITIVE_INFINITY);
+        if (boundingCentre == null || boundingRadius == Double.POSITIVE_INFINITY
+                || !getString(element, "bounding-operator", "<").equals("<")) {
+            return null;
+        }
+
+        Vector3 point = getPosition(element);
+        Vector3 normal = getNormal(element);
+        double distance = boundingCentre.subtract(point).dot(normal);
+        Vector3 centre = boundingCentre.subtract(normal.scale(distance));
+        // a sphere that misses the plane leaves nothing to render
+        double radius = Math.sqrt(Math.max(0, boundingRadius * boundingRadius - distance * distance));
+
+        return new Disk(
+                point,
+                normal,
+                centre,
+                radius,
+                getColour(element),
+                getDouble(element, "kD", Plane.DEFAULT_PLANE_KD),
+                getDouble(element, "kS", Plane.DEFAULT_PLANE_KS),
+                getDouble(element, "alphaS", Plane.DEFAULT_PLANE_ALPHA),
+                getDouble(element, "reflectivity", Plane.DEFAULT_PLANE_REFLECTIVITY),
+                getString(element, "bump-map", null),
+                getString(element, "texture-map", null),
+                getDouble(element,"texture-scale", 10),
+                getDouble(element, "texture-rotation", 0)
+        );
+    }
+
+    // Load the objects inside an element into a list, appending their keys to groupKey
+    private List<SceneObject> loadGroup(Element parent, StringBuilder groupKey) {
+        List<SceneObject> group = new LinkedList<>();
+        List<Sphere> groupSpheres = new LinkedList<>();
+
+        NodeList children = parent.getChildNodes();
+        for (int i = 0; i < children.getLength(); ++i) {
+            if (!(children.item(i) instanceof Element)) {
+                continue;
+            }
+            Element element = (Element) children.item(i);
+            String key = getElementKey(element);
+            for (SceneObject object : loadObjects(element, key)) {
+                groupKey.append(objectKeys.get(object)).append('\n');
+                if (isPackable(object)) {
+                    groupSpheres.add((Sphere) object);
+                } else {
+                    group.add(object);
+                }
+            }
+        }
+        group.addAll(packSpheres(groupSpheres));
+
+        if (group.isEmpty()) {
+            throw new RuntimeException("empty " + parent.getNodeName() + " element");
+        }
+        return group;
+    }
+
+    // Spheres which can share a SphereSet, which only has one material each and tests every member on shadow rays
+    private boolean isPackable(SceneObject object) {
+        return object instanceof Sphere && ((Sphere) object).isPlain() && object.castsShadows();
+    }
+
+    // Add a light of any kind to the scene, along with the names of the objects it is linked to
+    private void addLight(PointLight light, Element element, String key) {
+        light.setLinks(getNames(element, "include"), getNames(element, "exclude"));
+        scene.addPointLight(light);
+        lightsKey.append(key).append('\n');
+    }
+
+    // Pack the spheres into a SphereSet if there are enough of them to be worth it
+    private List<SceneObject> packSpheres(List<Sphere> spheres) {
+        List<SceneObject> objects = new LinkedList<>();
+        if (spheres.size() >= MIN_SPHERE_SET_SIZE) {
+            objects.add(new SphereSet(spheres, precision));
+        } else {
+            objects.addAll(spheres);
+        }
+        return objects;
     }
 
     public RaycastHit.Scene getScene() {
         return scene;
     }
 
+    // The signature of the element each object was loaded from
+    public Map<SceneObject, String> getObjectKeys() {
+        return objectKeys;
+    }
+
+    // Signature of all the lights in the scene, in document order
+    public String getLightsKey() {
+        return lightsKey.toString();
+    }
+
+    // Signature of the camera, ambient light and background
+    public String getSettingsKey() {
+        return settingsKey.toString();
+    }
+
+    // The tag name followed by its attributes in alphabetical order, so that two elements describing the same thing compare equal
+    private String getElementKey(Element tag) {
+        NamedNodeMap attributes = tag.getAttributes();
+        String[] pairs = new String[attributes.getLength()];
+        for (int i = 0; i < pairs.length; i++) {
+            pairs[i] = attributes.item(i).getNodeName() + "=" + attributes.item(i).getNodeValue();
+        }
+        Arrays.sort(pairs);
+        return tag.getNodeName() + Arrays.toString(pairs);
+    }
+
     private Vector3 getPosition(Element tag) {
         double x = getDouble(tag, "x", 0);
         double y = getDouble(tag, "y", 0);
@@ -163,6 +620,14 @@ public class SceneLoader {
         return new Vector3(x, y, z).normalised();
     }
 
+    // An edge of a rectangle or quad, given by the attributes ux, uy, uz or vx, vy, vz
+    private Vector3 getEdge(Element tag, String name) {
+        double x = getDouble(tag, name + "x", 0);
+        double y = getDouble(tag, name + "y", 0);
+        double z = getDouble(tag, name + "z", 0);
+        return new Vector3(x, y, z);
+    }
+
     private Vector3 getRotation(Element tag) {
         double x = getDouble(tag, "rx", 0);
         double y = getDouble(tag, "ry", 0);
@@ -220,6 +685,33 @@ public class SceneLoader {
         }
     }
 
+    private int getInt(Element tag, String attribute, int fallback) {
+        try {
+            return Integer.parseInt(tag.getAttribute(attribute));
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private boolean getBoolean(Element tag, String attribute, boolean fallback) {
+        String value = tag.getAttribute(attribute);
+        if (value.equals("")) {
+            return fallback;
+        }
+        return Boolean.parseBoolean(value);
+    }
+
+    // A list of object names separated by spaces or commas
+    private Set<String> getNames(Element tag, String attribute) {
+        Set<String> names = new HashSet<>();
+        for (String name : tag.getAttribute(attribute).split("[\\s,]+")) {
+            if (!name.equals("")) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
     private String getString(Element tag, String attribute, String fallback){
         String fname = tag.getAttribute(attribute);
         if (fname.equals("")) {
@@ -231,6 +723,9 @@ public class SceneLoader {
         if (attribute.equals("texture-map")) {
             return "textures/" + fname;
         }
+        if (attribute.equals("obj")) {
+            return "meshes/" + fname;
+        }
         return fname;
     }
 }
@@ -0,0 +1,160 @@
+package uk.ac.cam.cl.bdt29;
+
+import uk.ac.cam.cl.bdt29.elements.SceneObject;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class SceneWatcher {
+    // Watches a scene file and re-renders it whenever it changes, only re-tracing the pixels that the change could affect
+
+    // How often the scene file is checked for changes
+    private static final long POLL_INTERVAL_MS = 500;
+
+    private final String sceneFile;
+    private final String output;
+    private final Renderer renderer;
+    private final int width, height;
+    private final Precision precision;
+
+    // The last scene rendered, along with the objects touched by each pixel when it was traced
+    private SceneLoader loader;
+    private BufferedImage image;
+    private SceneObject[][] paths;
+
+    public SceneWatcher(String sceneFile, String output, Renderer renderer, Precision precision) {
+        this.sceneFile = sceneFile;
+        this.precision = precision;
+        this.output = output;
+        this.renderer = renderer;
+        this.width = renderer.getWidth();
+        this.height = renderer.getHeight();
+    }
+
+    public void watch() throws IOException, InterruptedException {
+        File file = new File(sceneFile);
+        long lastModified = file.lastModified();
+
+        loader = new SceneLoader(sceneFile, precision);
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        paths = new SceneObject[width * height][];
+        renderer.setBackgroundColour(loader.getScene().getBackgroundColour());
+        renderer.render(loader.getScene(), image, null, paths);
+        save();
+
+        System.out.printf("Watching '%s' for changes\n", sceneFile);
+        while (true) {
+            Thread.sleep(POLL_INTERVAL_MS);
+            if (file.lastModified() == lastModified) {
+                continue;
+            }
+            lastModified = file.lastModified();
+
+            SceneLoader newLoader;
+            try {
+                newLoader = new SceneLoader(sceneFile, precision);
+            } catch (RuntimeException e) {
+                // the file is probably only half written, wait for the next change
+                System.err.println("Could not reload scene: " + e.getMessage());
+                continue;
+            }
+            update(newLoader);
+            save();
+        }
+    }
+
+    // Diff the new scene against the last one and re-trace the pixels whose paths could have changed
+    private void update(SceneLoader newLoader) {
+        RaycastHit.Scene newScene = newLoader.getScene();
+        renderer.setBackgroundColour(newScene.getBackgroundColour());
+
+        // the camera, ambient light or background changing affects every pixel
+        if (!newLoader.getSettingsKey().equals(loader.getSettingsKey())) {
+            System.out.println("Camera or lighting settings changed, re-rendering everything");
+            loader = newLoader;
+            renderer.render(newScene, image, null, paths);
+            return;
+        }
+        boolean lightsChanged = !newLoader.getLightsKey().equals(loader.getLightsKey());
+
+        // match up the objects which were loaded from identical elements, anything left over was removed or added
+        Map<String, List<SceneObject>> unmatched = new HashMap<>();
+        for (Map.Entry<SceneObject, String> entry : newLoader.getObjectKeys().entrySet()) {
+            unmatched.computeIfAbsent(entry.getValue(), k -> new LinkedList<>()).add(entry.getKey());
+        }
+        Map<SceneObject, SceneObject> carried = new IdentityHashMap<>();
+        Set<SceneObject> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Map.Entry<SceneObject, String> entry : loader.getObjectKeys().entrySet()) {
+            List<SceneObject> candidates = unmatched.get(entry.getValue());
+            if (candidates != null && !candidates.isEmpty()) {
+                carried.put(entry.getKey(), candidates.remove(0));
+            } else {
+                removed.add(entry.getKey());
+            }
+        }
+        Set<SceneObject> added = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (List<SceneObject> objects : unmatched.values()) {
+            added.addAll(objects);
+        }
+
+        if (!lightsChanged && removed.isEmpty() && added.isEmpty()) {
+            System.out.println("No changes to the scene");
+            loader = newLoader;
+            return;
+        }
+
+        // pixels which touched a removed object, or any object at all if the lights changed
+        boolean[] dirty = new boolean[width * height];
+        for (int i = 0; i < dirty.length; i++) {
+            dirty[i] = (lightsChanged && paths[i].length > 0) || touchesAny(paths[i], removed);
+        }
+
+        // the old paths can't tell us where a new object will appear, so send a single cheap ray through each pixel
+        if (!added.isEmpty()) {
+            SceneObject[][] probes = renderer.probePaths(newScene);
+            for (int i = 0; i < dirty.length; i++) {
+                dirty[i] |= touchesAny(probes[i], added);
+            }
+        }
+
+        // the pixels which are kept now refer to the equivalent objects in the new scene
+        int retraced = 0;
+        for (int i = 0; i < dirty.length; i++) {
+            if (dirty[i]) {
+                retraced++;
+                continue;
+            }
+            for (int j = 0; j < paths[i].length; j++) {
+                paths[i][j] = carried.get(paths[i][j]);
+            }
+        }
+
+        System.out.printf("%d objects removed or changed, %d added%s, re-tracing %d of %d pixels\n",
+                removed.size(), added.size(), lightsChanged ? ", lights changed" : "", retraced, dirty.length);
+        loader = newLoader;
+        renderer.render(newScene, image, dirty, paths);
+    }
+
+    private boolean touchesAny(SceneObject[] path, Set<SceneObject> objects) {
+        for (SceneObject object : path) {
+            if (objects.contains(object)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void save() throws IOException {
+        ImageIO.write(image, "png", new File(output));
+        System.out.printf("Saved '%s'\n", output);
+    }
+}
@@ -0,0 +1,103 @@
+package uk.ac.cam.cl.bdt29;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public enum TileOrder {
+    // The order the tiles of an image are rendered in. Along a space-filling curve, the tiles rendered one after another
+    // (or at the same time on different threads) are next to each other in both directions, so they see the same objects,
+    // textures and parts of meshes while those are still in the cache. Scanline order jumps back across the whole image at
+    // the end of every row of tiles, and a HILBERT curve never jumps at all where a MORTON curve jumps at the end of every
+    // block, but MORTON order is cheaper to work out
+
+    SCANLINE, MORTON, HILBERT;
+
+    /*
+     * The tiles of a width by height image, each tileSize square or smaller at the right and bottom edges, as
+     * {x0, y0, x1, y1} with x1 and y1 exclusive. The curves run over the smallest power of two square of tiles that covers
+     * the image, skipping the tiles past its edges
+     */
+    public int[][] tiles(int width, int height, int tileSize) {
+        int columns = (width + tileSize - 1) / tileSize;
+        int rows = (height + tileSize - 1) / tileSize;
+        List<int[]> tiles = new ArrayList<>(columns * rows);
+        if (this == SCANLINE) {
+            for (int row = 0; row < rows; row++) {
+                for (int column = 0; column < columns; column++) {
+                    tiles.add(tile(column, row, tileSize, width, height));
+                }
+            }
+            return tiles.toArray(new int[0][]);
+        }
+
+        int side = 1;
+        while (side < Math.max(columns, rows)) {
+            side *= 2;
+        }
+        int[] position = new int[2];
+        for (int d = 0; d < side * side; d++) {
+            if (this == MORTON) {
+                mortonPosition(d, position);
+            } else {
+                hilbertPosition(side, d, position);
+            }
+            if (position[0] < columns && position[1] < rows) {
+                tiles.add(tile(position[0], position[1], tileSize, width, height));
+            }
+        }
+        return tiles.toArray(new int[0][]);
+    }
+
+    private static int[] tile(int column, int row, int tileSize, int width, int height) {
+        int x0 = column * tileSize, y0 = row * tileSize;
+        return new int[]{x0, y0, Math.min(width, x0 + tileSize), Math.min(height, y0 + tileSize)};
+    }
+
+    // The column and row at distance d along the Z curve, from the even and odd bits of d
+    private static void mortonPosition(int d, int[] position) {
+        int x = 0, y = 0;
+        for (int bit = 0; bit < 16; bit++) {
+            x |= ((d >> (2 * bit)) & 1) << bit;
+            y |= ((d >> (2 * bit + 1)) & 1) << bit;
+        }
+        position[0] = x;
+        position[1] = y;
+    }
+
+    // The column and row at distance d along the Hilbert curve over a side by side square, side a power of two
+    private static void hilbertPosition(int side, int d, int[] position) {
+        int x = 0, y = 0;
+        for (int s = 1; s < side; s *= 2) {
+            int rx = 1 & (d / 2);
+            int ry = 1 & (d ^ rx);
+            // rotate the quadrant so the curve joins up with the one before it
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = s - 1 - x;
+                    y = s - 1 - y;
+                }
+                int swap = x;
+                x = y;
+                y = swap;
+            }
+            x += s * rx;
+            y += s * ry;
+            d /= 4;
+        }
+        position[0] = x;
+        position[1] = y;
+    }
+
+    public static TileOrder parse(String name) {
+        switch (name) {
+            case "scanline":
+                return SCANLINE;
+            case "morton":
+                return MORTON;
+            case "hilbert":
+                return HILBERT;
+            default:
+                throw new IllegalArgumentException("unknown tile order: " + name);
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package uk.ac.cam.cl.bdt29;
+
+import uk.ac.cam.cl.bdt29.data_structures.ColorRGB;
+import uk.ac.cam.cl.bdt29.data_structures.Vector3;
+import uk.ac.cam.cl.bdt29.elements.Material;
+import uk.ac.cam.cl.bdt29.elements.PointLight;
+import uk.ac.cam.cl.bdt29.elements.SceneObject;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+public class WavefrontRenderer extends Renderer {
+    // Renders a tile at a time breadth first instead of recursing one ray at a time. Every ray of a wave is intersected
+    // together, the hits are shaded in batches of the same material, and the reflected, refracted and shadow rays they
+    // make are queued for the next wave. Each ray carries the share of its pixel's colour it is responsible for, which is
+    // what the recursion in Renderer.shade multiplies out on the way back up, so both give the same image. The few extra
+    // rays anti-aliasing adds on edges are still traced by Renderer a pixel at a time
+
+    // A camera, reflected or refracted ray waiting to be traced
+    private static class PathRay {
+        final Ray ray;
+        final ColorRGB weight;
+        // the tile pixel it adds to, and which of that pixel's camera rays it came from counting across the whole tile
+        final int pixel, sample;
+        final int bouncesLeft;
+        RaycastHit hit;
+
+        PathRay(Ray ray, ColorRGB weight, int pixel, int sample, int bouncesLeft) {
+            this.ray = ray;
+            this.weight = weight;
+            this.pixel = pixel;
+            this.sample = sample;
+            this.bouncesLeft = bouncesLeft;
+        }
+    }
+
+    // A shadow ray, carrying the light it will add to its pixel if nothing is in the way
+    private static class ShadowRay {
+        final Ray ray;
+        final double distance;
+        final ColorRGB contribution;
+        final int pixel, sample;
+
+        ShadowRay(Ray ray, double distance, ColorRGB contribution, int pixel, int sample) {
+            this.ray = ray;
+            this.distance = distance;
+            this.contribution = contribution;
+            this.pixel = pixel;
+            this.sample = sample;
+        }
+    }
+
+    private final RayPacket packet = new RayPacket();
+
+    // The tile being rendered: the light gathered for each of its pixels so far, and the objects each has touched if recording
+    private ColorRGB[] accumulated;
+    // The brightness gathered for each camera ray of the tile so far, pixel by pixel, for the variance between them
+    private double[] sampleBrightness;
+    private List<Set<SceneObject>> records;
+
+    public WavefrontRenderer(int width, int height, int bounces, ColorRGB background) {
+        super(width, height, bounces, background);
+    }
+
+    private WavefrontRenderer(WavefrontRenderer other) {
+        super(other);
+    }
+
+    @Override
+    protected Renderer copy() {
+        return new WavefrontRenderer(this);
+    }
+
+    @Override
+    protected void renderTile(RaycastHit.Scene scene, Camera camera, int x0, int y0, int x1, int y1,
+                              BufferedImage image, boolean[] dirty, SceneObject[][] paths) {
+        int tileWidth = x1 - x0;
+        int pixels = tileWidth * (y1 - y0);
+        accumulated = new ColorRGB[pixels];
+        records = paths == null ? null : new ArrayList<>(Collections.nCopies(pixels, null));
+
+        // the first wave is every lens ray of every pixel in the tile, as in Renderer.renderPixel
+        List<PathRay> wave = new ArrayList<>();
+        camera.fillRays(x0, y0, x1, y1, cameraRays);
+        boolean pinhole = isPinhole(camera);
+        ColorRGB cameraWeight = new ColorRGB(pinhole ? 1 : 1 / (double) cameraRayCount);
+        int samplesPerPixel = pinhole ? 1 : cameraRayCount;
+        sampleBrightness = new double[pixels * samplesPerPixel];
+        for (int pixel = 0; pixel < pixels; pixel++) {
+            int x = x0 + pixel % tileWidth;
+            int y = y0 + pixel / tileWidth;
+            if (dirty != null && !dirty[y * width + x]) {
+                continue;
+            }
+            accumulated[pixel] = new ColorRGB(0);
+            if (records != null) {
+                records.set(pixel, Collections.newSetFromMap(new IdentityHashMap<>()));
+            }
+
+            if (pinhole) {
+                Vector3 direction = new Vector3(cameraRays.directionX[pixel], cameraRays.directionY[pixel], cameraRays.directionZ[pixel]);
+                wave.add(new PathRay(new Ray(camera.origin, direction, Camera.START_REFRACTIVE_INDEX), cameraWeight, pixel, pixel, bounces));
+                continue;
+            }
+            if (needsPrimary()) {
+                Vector3 direction = new Vector3(cameraRays.directionX[pixel], cameraRays.directionY[pixel], cameraRays.directionZ[pixel]);
+                recordPrimary(y * width + x, scene.findClosestIntersection(new Ray(camera.origin, direction, Camera.START_REFRACTIVE_INDEX)));
+            }
+            Vector3 pointAtFocalLength = new Vector3(cameraRays.focusX[pixel], cameraRays.focusY[pixel], cameraRays.focusZ[pixel]);
+            for (int i = 0; i < cameraRayCount; i++) {
+                Vector3 rayOrigin = camera.sampleLens();
+                Vector3 rayDirection = pointAtFocalLength.subtract(rayOrigin).normalised();
+                wave.add(new PathRay(new Ray(rayOrigin, rayDirection, Camera.START_REFRACTIVE_INDEX), cameraWeight, pixel, pixel * cameraRayCount + i, bounces));
+            }
+        }
+
+        boolean firstWave = true;
+        while (!wave.isEmpty()) {
+            intersect(scene, wave);
+            if (firstWave && pinhole) {
+                // the camera rays go through the centre of the lens, so they are what edges are found and denoising is guided by
+                for (PathRay pathRay : wave) {
+                    recordPrimary((y0 + pathRay.pixel / tileWidth) * width + x0 + pathRay.pixel % tileWidth, pathRay.hit);
+                }
+            }
+            firstWave = false;
+
+            List<PathRay> hits = new ArrayList<>(wave.size());
+            for (PathRay pathRay : wave) {
+                SceneObject object = pathRay.hit.getObjectHit();
+                if (object == null) {
+                    accumulate(pathRay.pixel, pathRay.sample, pathRay.weight.scale(background(scene, pathRay.ray)));
+                    continue;
+                }
+                if (records != null) {
+                    records.get(pathRay.pixel).add(object);
+                    if (pathRay.hit.getInstance() != null) {
+                        records.get(pathRay.pixel).add(pathRay.hit.getInstance());
+                    }
+                }
+                hits.add(pathRay);
+            }
+
+            // shade hits on the same material together
+            hits.sort(Comparator.comparingInt(pathRay -> System.identityHashCode(pathRay.hit.getObjectHit().getMaterial())));
+            List<PathRay> nextWave = new ArrayList<>();
+            List<ShadowRay> shadowRays = new ArrayList<>();
+            for (PathRay pathRay : hits) {
+                shadeHit(scene, pathRay, nextWave, shadowRays);
+            }
+            traceShadows(scene, shadowRays);
+            wave = nextWave;
+        }
+
+        for (int pixel = 0; pixel < pixels; pixel++) {
+            if (accumulated[pixel] == null) {
+                continue;
+            }
+            int x = x0 + pixel % tileWidth;
+            int y = y0 + pixel / tileWidth;
+            frame.setColour(y * width + x, accumulated[pixel]);
+            // each camera ray's share was scaled down by the number of them
+            double sum = 0, sumOfSquares = 0;
+            for (int sample = pixel * samplesPerPixel; sample < (pixel + 1) * samplesPerPixel; sample++) {
+                double brightness = sampleBrightness[sample] * samplesPerPixel;
+                sum += brightness;
+                sumOfSquares += brightness * brightness;
+            }
+            frame.setVariance(y * width + x, sampleVariance(sum, sumOfSquares, samplesPerPixel));
+            image.setRGB(x, y, tonemap(accumulated[pixel]).toRGB());
+            if (paths != null) {
+                paths[y * width + x] = records.get(pixel).toArray(new SceneObject[0]);
+            }
+        }
+        accumulated = null;
+        sampleBrightness = null;
+        records = null;
+    }
+
+    private void accumulate(int pixel, int sample, ColorRGB colour) {
+        accumulated[pixel] = accumulated[pixel].add(colour);
+        sampleBrightness[sample] += brightness(colour);
+    }
+
+    // Find the closest hit of every ray in the wave, a packet at a time
+    private void intersect(RaycastHit.Scene scene, List<PathRay> wave) {
+        for (int start = 0; start < wave.size(); start += RayPacket.MAX_SIZE) {
+            packet.clear();
+            int end = Math.min(wave.size(), start + RayPacket.MAX_SIZE);
+            for (int i = start; i < end; i++) {
+                packet.add(wave.get(i).ray);
+            }
+            scene.findClosestIntersections(packet);
+            for (int i = start; i < end; i++) {
+                wave.get(i).hit = packet.getHit(i - start);
+            }
+        }
+    }
+
+    /*
+     * Split a hit into the same direct, reflected and refracted parts as Renderer.shade, queueing the rays for the reflected
+     * and refracted parts and the shadow rays for the direct part, each weighted by its share of the pixel
+     */
+    private void shadeHit(RaycastHit.Scene scene, PathRay pathRay, List<PathRay> nextWave, List<ShadowRay> shadowRays) {
+        Ray ray = pathRay.ray;
+        RaycastHit hit = pathRay.hit;
+        SceneObject object = hit.getObjectHit();
+        Material material = object.getMaterial();
+        int bouncesLeft = pathRay.bouncesLeft;
+
+        Vector3 P = hit.getLocation();
+        Vector3 N = hit.getNormal();
+        Vector3 O = ray.getOrigin();
+
+        double currentRefractiveIndex = ray.getRefractiveIndex();
+        double newRefractiveIndex = material.getRefractiveIndex();
+        double FresnelFactorForReflectivity = material.getReflectivity();
+        ColorRGB transmittance = material.getTransmittance();
+        ColorRGB transmittanceComplement = material.getTransmittanceComplement();
+
+        Ray refractedRay = null;
+        if (!material.isOpaque() && bouncesLeft > 0) {
+            if (currentRefractiveIndex == newRefractiveIndex) {
+                newRefractiveIndex = 1;
+            }
+            double refractive_index_ratio = currentRefractiveIndex / newRefractiveIndex;
+
+            Vector3 I = P.subtract(O).normalised();
+            double cosThetaI = Math.abs(I.dot(N));
+            double sinThetaR = Math.sqrt(Math.max(0, refractive_index_ratio * refractive_index_ratio * (1 - cosThetaI * cosThetaI)));
+            double cosThetaR = Math.sqrt(Math.max(0, 1 - sinThetaR * sinThetaR));
+
+            if (sinThetaR * sinThetaR > 1) {
+                // total internal reflection, the transmitted part of the light is all reflected
+                Vector3 direction = O.subtract(P).reflectIn(N).normalised();
+                Ray reflectedRay = new Ray(P.add(N.scale(offsetAt(P))), direction, ray.getRefractiveIndex(), material.getRoughness());
+                nextWave.add(new PathRay(reflectedRay, pathRay.weight.scale(transmittance), pathRay.pixel, pathRay.sample, bouncesLeft - 1));
+                illuminate(scene, pathRay, material, P, N, O, pathRay.weight.scale(transmittanceComplement), shadowRays);
+                return;
+            }
+
+            Vector3 v_refract = I.scale(refractive_index_ratio).add(N.scale(refractive_index_ratio * cosThetaI - cosThetaR));
+            refractedRay = new Ray(P.add(N.scale(-offsetAt(P))), v_refract.normalised(), newRefractiveIndex);
+
+            // frensel refraction, schlick's approximation
+            FresnelFactorForReflectivity = material.getReflectivity() + (1 - material.getReflectivity()) * Math.pow(1 - cosThetaI, 5);
+        }
+
+        // reflection is only traced while there are bounces left, otherwise its share goes nowhere
+        double throughReflection = 0;
+        if (bouncesLeft > 0 && FresnelFactorForReflectivity != 0) {
+            throughReflection = FresnelFactorForReflectivity;
+            Vector3 direction = O.subtract(P).reflectIn(N).normalised();
+            Ray reflectedRay = new Ray(P.add(direction.scale(offsetAt(P))), direction, ray.getRefractiveIndex(), material.getRoughness());
+            nextWave.add(new PathRay(reflectedRay, pathRay.weight.scale(throughReflection), pathRay.pixel, pathRay.sample, bouncesLeft - 1));
+        }
+
+        double notReflected = 1 - throughReflection;
+        if (refractedRay != null) {
+            nextWave.add(new PathRay(refractedRay, pathRay.weight.scale(transmittance).scale(notReflected), pathRay.pixel, pathRay.sample, bouncesLeft - 1));
+        }
+        illuminate(scene, pathRay, material, P, N, O, pathRay.weight.scale(transmittanceComplement).scale(notReflected), shadowRays);
+    }
+
+    // Add the ambient light straight away, and queue a shadow ray for every light sample that could reach P
+    private void illuminate(RaycastHit.Scene scene, PathRay pathRay, Material material, Vector3 P, Vector3 N, Vector3 O, ColorRGB weight, List<ShadowRay> shadowRays) {
+        if (weight.isZero()) {
+            return;
+        }
+        SceneObject object = pathRay.hit.getObjectHit();
+        SceneObject instance = pathRay.hit.getInstance();
+        ColorRGB C_diff = object.getColourAt(pathRay.hit, surface);
+        accumulate(pathRay.pixel, pathRay.sample, C_diff.scale(scene.getAmbientLighting()).scale(weight));
+
+        boolean receivesShadows = object.receivesShadows() && (instance == null || instance.receivesShadows());
+        List<PointLight> pointLights = scene.getPointLights();
+        if (pointLights.size() <= lightSampleCount) {
+            for (PointLight light : pointLights) {
+                if (light.illuminates(object, instance)) {
+                    queueLight(pathRay, light, material, C_diff, P, N, O, weight, receivesShadows, shadowRays);
+                }
+            }
+        } else {
+            // the same unbiased light tree sampling as Renderer.illuminate
+            LightTree lightTree = scene.getLightTree();
+            for (int i = 0; i < lightSampleCount; i++) {
+                LightTree.Sample sample = lightTree.sample(P, N);
+                if (sample.light.illuminates(object, instance)) {
+                    ColorRGB sampleWeight = weight.scale(1 / (sample.probability * lightSampleCount));
+                    queueLight(pathRay, sample.light, material, C_diff, P, N, O, sampleWeight, receivesShadows, shadowRays);
+                }
+            }
+        }
+    }
+
+    private void queueLight(PathRay pathRay, PointLight light, Material material, ColorRGB C_diff, Vector3 P, Vector3 N, Vector3 O,
+                            ColorRGB weight, boolean receivesShadows, List<ShadowRay> shadowRays) {
+        ColorRGB contribution = phongFrom(light, P, N, O, C_diff, material).scale(weight);
+        if (contribution.isZero()) {
+            return; // no point checking for shadows
+        }
+        if (!receivesShadows) {
+            accumulate(pathRay.pixel, pathRay.sample, contribution);
+            return;
+        }
+
+        int count = light.getShadowSampleCount(shadowRayCount);
+        ColorRGB share = contribution.scale(1 / (double) count);
+        Vector3 origin = P.add(N.scale(offsetAt(P)));
+        for (int j = 0; j < count; j++) {
+            Vector3 toLight = light.sampleShadowPosition(P, j, count).subtract(P);
+            double distance = toLight.magnitude();
+            shadowRays.add(new ShadowRay(new Ray(origin, toLight.scale(1 / distance), pathRay.ray.getRefractiveIndex()), distance, share, pathRay.pixel, pathRay.sample));
+        }
+    }
+
+    // Trace the queued shadow rays a packet at a time, adding what gets through to each pixel
+    private void traceShadows(RaycastHit.Scene scene, List<ShadowRay> shadowRays) {
+        for (int start = 0; start < shadowRays.size(); start += RayPacket.MAX_SIZE) {
+            packet.clear();
+            int end = Math.min(shadowRays.size(), start + RayPacket.MAX_SIZE);
+            for (int i = start; i < end; i++) {
+                packet.add(shadowRays.get(i).ray);
+            }
+            scene.findClosestOccluders(packet);
+
+            for (int i = start; i < end; i++) {
+                ShadowRay shadowRay = shadowRays.get(i);
+                if (packet.getHitDistance(i - start) <= shadowRay.distance) {
+                    Set<SceneObject> blockers = records == null ? null : records.get(shadowRay.pixel);
+                    ColorRGB transmitted = scene.findCompoundTransmittance(shadowRay.ray, shadowRay.distance, blockers);
+                    accumulate(shadowRay.pixel, shadowRay.sample, shadowRay.contribution.scale(transmitted));
+                } else {
+                    accumulate(shadowRay.pixel, shadowRay.sample, shadowRay.contribution);
+                }
+            }
+        }
+    }
+}
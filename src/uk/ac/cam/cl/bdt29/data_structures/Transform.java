@@ -0,0 +1,170 @@
+package uk.ac.cam.cl.bdt29.data_structures;
+
+public final class Transform {
+    // An affine transform, point' = M * point + t, kept in flat fields so applying it never has to index an array.
+    // Vectors (directions and normals) only go through M. Transforms never change once they are made
+
+    public static final Transform IDENTITY = new Transform(1, 0, 0, 0, 1, 0, 0, 0, 1);
+
+    // M, row by row
+    private final double m00, m01, m02;
+    private final double m10, m11, m12;
+    private final double m20, m21, m22;
+
+    // t
+    private final double tx, ty, tz;
+
+    // Worked out the first time it is asked for. Two threads may both work it out, but they get the same answer
+    private Transform inverse;
+
+    public Transform(double m00, double m01, double m02,
+                     double m10, double m11, double m12,
+                     double m20, double m21, double m22) {
+        this(m00, m01, m02, m10, m11, m12, m20, m21, m22, 0, 0, 0);
+    }
+
+    public Transform(double m00, double m01, double m02,
+                     double m10, double m11, double m12,
+                     double m20, double m21, double m22,
+                     double tx, double ty, double tz) {
+        this.m00 = m00; this.m01 = m01; this.m02 = m02;
+        this.m10 = m10; this.m11 = m11; this.m12 = m12;
+        this.m20 = m20; this.m21 = m21; this.m22 = m22;
+        this.tx = tx; this.ty = ty; this.tz = tz;
+    }
+
+    // Rotation for rotations in degrees about the X, Y and Z axes
+    public static Transform rotation(Vector3 rotation) {
+        double cosX = Math.cos(Math.toRadians(rotation.x));
+        double sinX = Math.sin(Math.toRadians(rotation.x));
+        double cosY = Math.cos(Math.toRadians(rotation.y));
+        double sinY = Math.sin(Math.toRadians(rotation.y));
+        double cosZ = Math.cos(Math.toRadians(rotation.z));
+        double sinZ = Math.sin(Math.toRadians(rotation.z));
+
+        // as a convention we will first rotate X, then Y, then Z, so this is RZ * RY * RX multiplied out
+        return new Transform(
+                cosZ * cosY, cosZ * sinY * sinX - sinZ * cosX, cosZ * sinY * cosX + sinZ * sinX,
+                sinZ * cosY, sinZ * sinY * sinX + cosZ * cosX, sinZ * sinY * cosX - cosZ * sinX,
+                -sinY, cosY * sinX, cosY * cosX);
+    }
+
+    // This transform applied after the other one, so this.multiply(other) applied to p is this(other(p))
+    public Transform multiply(Transform other) {
+        return new Transform(
+                m00 * other.m00 + m01 * other.m10 + m02 * other.m20,
+                m00 * other.m01 + m01 * other.m11 + m02 * other.m21,
+                m00 * other.m02 + m01 * other.m12 + m02 * other.m22,
+                m10 * other.m00 + m11 * other.m10 + m12 * other.m20,
+                m10 * other.m01 + m11 * other.m11 + m12 * other.m21,
+                m10 * other.m02 + m11 * other.m12 + m12 * other.m22,
+                m20 * other.m00 + m21 * other.m10 + m22 * other.m20,
+                m20 * other.m01 + m21 * other.m11 + m22 * other.m21,
+                m20 * other.m02 + m21 * other.m12 + m22 * other.m22,
+                pointX(other.tx, other.ty, other.tz),
+                pointY(other.tx, other.ty, other.tz),
+                pointZ(other.tx, other.ty, other.tz));
+    }
+
+    // This transform with everything scaled by scale about the origin first
+    public Transform scaled(double scale) {
+        return new Transform(
+                m00 * scale, m01 * scale, m02 * scale,
+                m10 * scale, m11 * scale, m12 * scale,
+                m20 * scale, m21 * scale, m22 * scale,
+                tx, ty, tz);
+    }
+
+    // This transform followed by moving everything by offset
+    public Transform translated(Vector3 offset) {
+        return new Transform(m00, m01, m02, m10, m11, m12, m20, m21, m22, tx + offset.x, ty + offset.y, tz + offset.z);
+    }
+
+    public Transform getInverse() {
+        Transform result = inverse;
+        if (result == null) {
+            result = calculateInverse();
+            result.inverse = this;
+            inverse = result;
+        }
+        return result;
+    }
+
+    /*
+     * The inverse of M is its adjugate over its determinant, and the inverse moves by -inverse(M) * t. A singular M
+     * gives infinite or NaN entries rather than an error, as the scenes allow zero scales
+     */
+    private Transform calculateInverse() {
+        double c00 = m11 * m22 - m12 * m21;
+        double c01 = m12 * m20 - m10 * m22;
+        double c02 = m10 * m21 - m11 * m20;
+        double invDet = 1 / (m00 * c00 + m01 * c01 + m02 * c02);
+
+        double i00 = c00 * invDet, i01 = (m02 * m21 - m01 * m22) * invDet, i02 = (m01 * m12 - m02 * m11) * invDet;
+        double i10 = c01 * invDet, i11 = (m00 * m22 - m02 * m20) * invDet, i12 = (m02 * m10 - m00 * m12) * invDet;
+        double i20 = c02 * invDet, i21 = (m01 * m20 - m00 * m21) * invDet, i22 = (m00 * m11 - m01 * m10) * invDet;
+
+        return new Transform(
+                i00, i01, i02,
+                i10, i11, i12,
+                i20, i21, i22,
+                -(i00 * tx + i01 * ty + i02 * tz),
+                -(i10 * tx + i11 * ty + i12 * tz),
+                -(i20 * tx + i21 * ty + i22 * tz));
+    }
+
+    public Vector3 getTranslation() {
+        return new Vector3(tx, ty, tz);
+    }
+
+    // Transform a position
+    public Vector3 applyToPoint(Vector3 p) {
+        return new Vector3(pointX(p.x, p.y, p.z), pointY(p.x, p.y, p.z), pointZ(p.x, p.y, p.z));
+    }
+
+    // Transform a direction or normal, which is not moved
+    public Vector3 applyToVector(Vector3 v) {
+        return new Vector3(vectorX(v.x, v.y, v.z), vectorY(v.x, v.y, v.z), vectorZ(v.x, v.y, v.z));
+    }
+
+    // Transform the position stored at values[offset..offset+2] in place
+    public void applyToPoint(double[] values, int offset) {
+        double x = values[offset], y = values[offset + 1], z = values[offset + 2];
+        values[offset] = pointX(x, y, z);
+        values[offset + 1] = pointY(x, y, z);
+        values[offset + 2] = pointZ(x, y, z);
+    }
+
+    // Transform the vector stored at values[offset..offset+2] in place
+    public void applyToVector(double[] values, int offset) {
+        double x = values[offset], y = values[offset + 1], z = values[offset + 2];
+        values[offset] = vectorX(x, y, z);
+        values[offset + 1] = vectorY(x, y, z);
+        values[offset + 2] = vectorZ(x, y, z);
+    }
+
+    // Single components of a transformed position or vector, for callers that only need some of them or build their own result
+    public double pointX(double x, double y, double z) {
+        return m00 * x + m01 * y + m02 * z + tx;
+    }
+
+    public double pointY(double x, double y, double z) {
+        return m10 * x + m11 * y + m12 * z + ty;
+    }
+
+    public double pointZ(double x, double y, double z) {
+        return m20 * x + m21 * y + m22 * z + tz;
+    }
+
+    public double vectorX(double x, double y, double z) {
+        return m00 * x + m01 * y + m02 * z;
+    }
+
+    public double vectorY(double x, double y, double z) {
+        return m10 * x + m11 * y + m12 * z;
+    }
+
+    public double vectorZ(double x, double y, double z) {
+        return m20 * x + m21 * y + m22 * z;
+    }
+}
@@ -1,11 +0,0 @@
-package uk.ac.cam.cl.bdt29.data_structures;
-
-public class Tuple<T> {
-    public T a;
-    public T b;
-
-    public Tuple(T a, T b) {
-        this.a = a;
-        this.b = b;
-    }
-}
\ No newline at end of file
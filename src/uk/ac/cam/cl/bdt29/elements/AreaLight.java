@@ -0,0 +1,48 @@
+package uk.ac.cam.cl.bdt29.elements;
+
+import uk.ac.cam.cl.bdt29.data_structures.ColorRGB;
+import uk.ac.cam.cl.bdt29.data_structures.Vector3;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+public abstract class AreaLight extends PointLight {
+    // A light with a real size, which casts soft shadows. Illumination is still calculated from its centre,
+    // but shadow rays are spread over its surface, stratified so that a few rays cover it evenly
+
+    // The number of shadow rays to cast towards this light, or 0 to use the renderer's default
+    protected final int shadowSamples;
+
+    protected AreaLight(Vector3 position, ColorRGB colour, double intensity, int shadowSamples) {
+        super(position, colour, intensity);
+        this.shadowSamples = shadowSamples;
+    }
+
+    @Override
+    public int getShadowSampleCount(int defaultCount) {
+        return shadowSamples > 0 ? shadowSamples : defaultCount;
+    }
+
+    /*
+     * Split the unit square into exactly sampleCount cells and return a random point inside cell sampleIndex, so that each
+     * shadow ray covers a different part of the light and every part is covered. The grid is as close to square as
+     * sampleCount's divisors allow, so a prime number of samples gives strips
+     */
+    protected static double[] stratifiedSample(int sampleIndex, int sampleCount) {
+        int rows = (int) Math.sqrt(sampleCount);
+        while (sampleCount % rows != 0) {
+            rows--;
+        }
+        int columns = sampleCount / rows;
+        double u = (sampleIndex % columns + ThreadLocalRandom.current().nextDouble()) / columns;
+        double v = (sampleIndex / columns + ThreadLocalRandom.current().nextDouble()) / rows;
+        return new double[]{u, v};
+    }
+
+    // Two unit vectors perpendicular to each other and to N
+    protected static Vector3[] getTangents(Vector3 N) {
+        Vector3 helper = Math.abs(N.x) < 0.9 ? new Vector3(1, 0, 0) : new Vector3(0, 1, 0);
+        Vector3 tangent = N.cross(helper).normalised();
+        Vector3 bitangent = N.cross(tangent);
+        return new Vector3[]{tangent, bitangent};
+    }
+}
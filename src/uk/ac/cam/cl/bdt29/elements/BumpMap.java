@@ -0,0 +1,81 @@
+package uk.ac.cam.cl.bdt29.elements;
+
+import uk.ac.cam.cl.bdt29.data_structures.Vector3;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+public class BumpMap {
+    // A greyscale height map turned into the change of height to the next texel across (Bu) and down (Bv) when it is
+    // loaded, so perturbing a normal is a single filtered lookup instead of three height lookups. The map wraps at the edges
+
+    // Heights go from 0 for black up to this for white
+    private static final float BUMP_FACTOR = 5f;
+
+    // Bu and Bv next to each other for each texel, row by row
+    private final float[] gradients;
+    private final int width, height;
+
+    public BumpMap(String filename) {
+        BufferedImage inputImg;
+        try {
+            inputImg = ImageIO.read(new File(filename));
+        } catch (IOException e) {
+            throw new RuntimeException("error reading bump map:\n" + e.getMessage());
+        }
+        if (inputImg == null) {
+            throw new RuntimeException("bump map is not an image: " + filename);
+        }
+        width = inputImg.getWidth();
+        height = inputImg.getHeight();
+
+        float[] heights = new float[width * height];
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                heights[row * width + col] = BUMP_FACTOR * (inputImg.getRGB(col, row) & 0xFF) / 0xFF;
+            }
+        }
+
+        // this way round makes the bumps go the correct way
+        gradients = new float[2 * width * height];
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                float h = heights[row * width + col];
+                gradients[2 * (row * width + col)] = h - heights[row * width + (col + 1) % width];
+                gradients[2 * (row * width + col) + 1] = h - heights[((row + 1) % height) * width + col];
+            }
+        }
+    }
+
+    /*
+     * Tilt normal by the gradient at (u, v), measured in whole widths and heights of the map, along the surface directions
+     * Pu and Pv that u and v increase in. The gradient is bilinearly filtered between the four nearest texels
+     */
+    public Vector3 perturb(Vector3 normal, Vector3 Pu, Vector3 Pv, double u, double v) {
+        double x = u * width;
+        double y = v * height;
+        double floorX = Math.floor(x);
+        double floorY = Math.floor(y);
+        double fx = x - floorX;
+        double fy = y - floorY;
+
+        int col0 = Math.floorMod((long) floorX, width);
+        int row0 = Math.floorMod((long) floorY, height);
+        int col1 = col0 + 1 == width ? 0 : col0 + 1;
+        int row1 = row0 + 1 == height ? 0 : row0 + 1;
+
+        int i00 = 2 * (row0 * width + col0), i01 = 2 * (row0 * width + col1);
+        int i10 = 2 * (row1 * width + col0), i11 = 2 * (row1 * width + col1);
+        double w00 = (1 - fx) * (1 - fy), w01 = fx * (1 - fy), w10 = (1 - fx) * fy, w11 = fx * fy;
+
+        double Bu = w00 * gradients[i00] + w01 * gradients[i01] + w10 * gradients[i10] + w11 * gradients[i11];
+        double Bv = w00 * gradients[i00 + 1] + w01 * gradients[i01 + 1] + w10 * gradients[i10 + 1] + w11 * gradients[i11 + 1];
+
+        return new Vector3(
+                normal.x + Pu.x * Bu + Pv.x * Bv,
+                normal.y + Pu.y * Bu + Pv.y * Bv,
+                normal.z + Pu.z * Bu + Pv.z * Bv).normalised();
+    }
+}
@@ -3,7 +3,6 @@ package uk.ac.cam.cl.bdt29.elements;
 import uk.ac.cam.cl.bdt29.Ray;
 import uk.ac.cam.cl.bdt29.RaycastHit;
 import uk.ac.cam.cl.bdt29.data_structures.ColorRGB;
-import uk.ac.cam.cl.bdt29.data_structures.Tuple;
 import uk.ac.cam.cl.bdt29.data_structures.Vector3;
 
 import javax.imageio.ImageIO;
@@ -27,37 +26,33 @@ public class Cone extends SceneObject {
     private double angle;
     private double length;
 
+    // Constants precomputed for intersectionWith
+    private final double cosSquaredTheta;
+    private final double lengthSquared;
+
 
     // bumpy and textured booleans
     public boolean bumpy = false;
     public boolean textured = false;
 
     public Cone(Vector3 point, Vector3 axis, double angle, double length, ColorRGB colour) {
-        this.point = point;
-        this.axis = axis;
-        this.angle = angle;
-        this.colour = colour;
-        this.length = length;
-
-        this.phong_kD = DEFAULT_CONE_KD;
-        this.phong_kS = DEFAULT_CONE_KS;
-        this.phong_alpha = DEFAULT_CONE_ALPHA;
-        this.reflectivity = DEFAULT_CONE_REFLECTIVITY;
-
-        this.angleStart = createAngleStartVector();
+        this(point, axis, angle, length, colour, DEFAULT_CONE_KD, DEFAULT_CONE_KS, DEFAULT_CONE_ALPHA, DEFAULT_CONE_REFLECTIVITY, null);
     }
 
     public Cone(Vector3 point, Vector3 axis, double angle, double length, ColorRGB colour, double kD, double kS, double alphaS, double reflectivity, String textureMapImg) {
         this.point = point;
         this.axis = axis;
         this.angle = angle;
-        this.colour = colour;
         this.length = length;
+        // angle is in degrees
+        double cosTheta = Math.cos(Math.toRadians(angle));
+        this.cosSquaredTheta = cosTheta * cosTheta;
+        this.lengthSquared = length * length;
+        // every point of the cone is within length of its tip
+        this.boundingCentre = point;
+        this.boundingRadius = length;
 
-        this.phong_kD = kD;
-        this.phong_kS = kS;
-        this.phong_alpha = alphaS;
-        this.reflectivity = reflectivity;
+        this.material = new Material(colour, kD, kS, alphaS, reflectivity);
 
 
         this.angleStart = this.createAngleStartVector();
@@ -95,24 +90,24 @@ public class Cone extends SceneObject {
 
         Vector3 CO = O.subtract(C);
 
-        // angle is in degrees
-        double deg_to_rad = (2*Math.PI)/360;
-        double cosTheta = Math.cos(this.angle * deg_to_rad);
+        double DdotV = D.dot(V);
+        double COdotV = CO.dot(V);
 
-        double a = Math.pow(D.dot(V),2)-Math.pow(cosTheta,2);
-        double b = 2 * (D.dot(V) * CO.dot(V)- D.dot(CO) * Math.pow(cosTheta,2));
-        double c = Math.pow(CO.dot(V),2) - CO.dot(CO) * Math.pow(cosTheta,2);
+        double a = DdotV * DdotV - cosSquaredTheta;
+        double b = 2 * (DdotV * COdotV - D.dot(CO) * cosSquaredTheta);
+        double c = COdotV * COdotV - CO.dot(CO) * cosSquaredTheta;
 
         // check discriminant
-        double disc = Math.pow(b,2) - 4 * a * c;
+        double disc = b * b - 4 * a * c;
 
         if (disc < 0) {
             // disc < 0, so there was no intersection
             return new RaycastHit();
         }
 
-        double intersect1 = (-b - Math.sqrt(disc)) / (2 * a);
-        double intersect2 = (-b + Math.sqrt(disc)) / (2 * a);
+        double sqrtDisc = Math.sqrt(disc);
+        double intersect1 = (-b - sqrtDisc) / (2 * a);
+        double intersect2 = (-b + sqrtDisc) / (2 * a);
         double intersectionS;
 
         // Check whether it is intersecting the shadow cone opposite to the defined cone, if so, no hit
@@ -139,8 +134,8 @@ public class Cone extends SceneObject {
         Vector3 intersectionPoint = ray.evaluateAt(intersectionS);
 
         // check it is within the length
-        double len = intersectionPoint.subtract(C).magnitude();
-        if (len > length) {
+        Vector3 CI = intersectionPoint.subtract(C);
+        if (CI.dot(CI) > lengthSquared) {
             return new RaycastHit();
         }
 
@@ -162,7 +157,6 @@ public class Cone extends SceneObject {
     }
 
     // Get normal to the plane
-    @Override
     public Vector3 getNormalAt(Vector3 I) {
         //https://stackoverflow.com/questions/66343772/cone-normal-vector
         Vector3 P = this.point;
@@ -171,14 +165,13 @@ public class Cone extends SceneObject {
     }
 
     @Override
-    public ColorRGB getColourAt (Vector3 position) {
-        if (textured) {
-            return getTextureColourAt(position);
-        }
-        return super.getColourAt(position);
+    protected boolean isTextured() {
+        return textured;
     }
 
-    public Tuple<Double> getRTheta (Vector3 position) {
+    // The surface coordinates of a cone are u = the distance from the tip and v = the angle around the axis
+    @Override
+    public boolean getSurfaceCoordinates(Vector3 position, SurfaceRecord surface) {
         // across = r - |r.n|n
         Vector3 r = position.subtract(this.point);
         Vector3 n = this.axis;
@@ -189,10 +182,9 @@ public class Cone extends SceneObject {
 
         // this will mean that the texture will be mapped on 2 sides of the cone the same as it does not distinguish between clockwise and anticlockwise
         // coordinate system is r,theta = x,y
-        double mangnitude = r.magnitude();
-        double theta = Math.acos(cosTheta);
-
-        return new Tuple<>(mangnitude,theta);
+        surface.u = r.magnitude();
+        surface.v = Math.acos(cosTheta);
+        return true;
     }
 
 
@@ -223,10 +215,10 @@ public class Cone extends SceneObject {
         }
     }
 
-    public ColorRGB getTextureColourAt(Vector3 position) {
-        Tuple<Double> rTheta = this.getRTheta(position);
-        double r = rTheta.a;
-        double theta = rTheta.b;
+    @Override
+    protected ColorRGB getTextureColourAt(SurfaceRecord surface) {
+        double r = surface.u;
+        double theta = surface.v;
 
         int x = (int)((double)textureMapWidth * (theta/Math.PI)); // theta can range from 0 to PI because of arccos
         // z should be textureMapWidth when r=length
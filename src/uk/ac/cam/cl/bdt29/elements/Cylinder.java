@@ -3,7 +3,6 @@ package uk.ac.cam.cl.bdt29.elements;
 import uk.ac.cam.cl.bdt29.Ray;
 import uk.ac.cam.cl.bdt29.RaycastHit;
 import uk.ac.cam.cl.bdt29.data_structures.ColorRGB;
-import uk.ac.cam.cl.bdt29.data_structures.Tuple;
 import uk.ac.cam.cl.bdt29.data_structures.Vector3;
 
 import javax.imageio.ImageIO;
@@ -29,6 +28,9 @@ public class Cylinder extends SceneObject {
     private double length;
     private double radius;
 
+    // Constants precomputed for intersectionWith
+    private final double radiusSquared;
+
 
     public Vector3 getPosition() {
         return position;
@@ -39,32 +41,21 @@ public class Cylinder extends SceneObject {
     public boolean textured = false;
 
     public Cylinder(Vector3 point, Vector3 axis, double length, double radius, ColorRGB colour) {
-        this.point = point;
-        this.axis = axis;
-        this.colour = colour;
-        this.length = length;
-        this.radius = radius;
-
-        this.phong_kD = DEFAULT_CYLINDER_KD;
-        this.phong_kS = DEFAULT_CYLINDER_KS;
-        this.phong_alpha = DEFAULT_CYLINDER_ALPHA;
-        this.reflectivity = DEFAULT_CYLINDER_REFLECTIVITY;
-
-        this.angleStart = createAngleStartVector();
+        this(point, axis, length, radius, colour, DEFAULT_CYLINDER_KD, DEFAULT_CYLINDER_KS, DEFAULT_CYLINDER_ALPHA, DEFAULT_CYLINDER_REFLECTIVITY, null);
     }
 
     public Cylinder(Vector3 point, Vector3 axis, double length, double radius, ColorRGB colour, double kD, double kS, double alphaS, double reflectivity, String textureMapImg) {
         this.point = point;
         this.axis = axis;
-        this.colour = colour;
         this.length = length;
         this.radius = radius;
+        this.radiusSquared = radius * radius;
+        // the cylinder runs from point to point + length * axis
+        this.boundingCentre = point.add(axis.scale(length / 2));
+        this.boundingRadius = Math.sqrt(length * length / 4 + radiusSquared);
 
 
-        this.phong_kD = kD;
-        this.phong_kS = kS;
-        this.phong_alpha = alphaS;
-        this.reflectivity = reflectivity;
+        this.material = new Material(colour, kD, kS, alphaS, reflectivity);
 
 
         this.angleStart = this.createAngleStartVector();
@@ -109,18 +100,19 @@ public class Cylinder extends SceneObject {
 
         double a = VxD.dot(VxD);
         double b = -2 * VxD.dot(VxOC);
-        double c = VxOC.dot(VxOC) - Math.pow(this.radius,2);
+        double c = VxOC.dot(VxOC) - radiusSquared;
 
         // check discriminant
-        double disc = Math.pow(b,2) - 4 * a * c;
+        double disc = b * b - 4 * a * c;
 
         if (disc < 0) {
             // disc < 0, so there was no intersection
             return new RaycastHit();
         }
 
-        double intersect1 = (-b - Math.sqrt(disc)) / (2 * a);
-        double intersect2 = (-b + Math.sqrt(disc)) / (2 * a);
+        double sqrtDisc = Math.sqrt(disc);
+        double intersect1 = (-b - sqrtDisc) / (2 * a);
+        double intersect2 = (-b + sqrtDisc) / (2 * a);
         double intersectionS;
 
         // Check whether it is intersecting the shadow cylinder opposite to the defined cylinder, if so, no hit
@@ -167,7 +159,6 @@ public class Cylinder extends SceneObject {
     }
 
     // Get normal to the plane
-    @Override
     public Vector3 getNormalAt(Vector3 position) {
         // r - axis * t  normalised
         Vector3 r = position.subtract(this.point);
@@ -179,14 +170,13 @@ public class Cylinder extends SceneObject {
     }
 
     @Override
-    public ColorRGB getColourAt (Vector3 position) {
-        if (textured) {
-            return getTextureColourAt(position);
-        }
-        return super.getColourAt(position);
+    protected boolean isTextured() {
+        return textured;
     }
 
-    public Tuple<Double> getHTheta (Vector3 position) {
+    // The surface coordinates of a cylinder are u = the height along the axis and v = the angle around it
+    @Override
+    public boolean getSurfaceCoordinates(Vector3 position, SurfaceRecord surface) {
         Vector3 across = getNormalAt(position);
 
         // the angle between this and angleStart can be calculated
@@ -194,10 +184,9 @@ public class Cylinder extends SceneObject {
 
         // this will mean that the texture will be mapped on 2 sides of the cylinder the same as it does not distinguish between clockwise and anticlockwise
         // coordinate system is h,theta = x,y
-        double H = position.subtract(this.point).dot(this.axis);
-        double theta = Math.acos(cosTheta);
-
-        return new Tuple<>(H,theta);
+        surface.u = position.subtract(this.point).dot(this.axis);
+        surface.v = Math.acos(cosTheta);
+        return true;
     }
 
 
@@ -228,10 +217,10 @@ public class Cylinder extends SceneObject {
         }
     }
 
-    public ColorRGB getTextureColourAt(Vector3 position) {
-        Tuple<Double> hTheta = this.getHTheta(position);
-        double theta = hTheta.a;
-        double h = hTheta.b;
+    @Override
+    protected ColorRGB getTextureColourAt(SurfaceRecord surface) {
+        double theta = surface.u;
+        double h = surface.v;
 
         int x = (int)((double)textureMapWidth * (theta/Math.PI)); // theta can range from 0 to PI because of arccos
         // z should be textureMapWidth when h=length
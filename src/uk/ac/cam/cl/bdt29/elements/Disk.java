@@ -0,0 +1,31 @@
+package uk.ac.cam.cl.bdt29.elements;
+
+import uk.ac.cam.cl.bdt29.data_structures.ColorRGB;
+import uk.ac.cam.cl.bdt29.data_structures.Vector3;
+
+public class Disk extends Plane {
+    // A circle cut out of a plane, with its own finite bounds
+
+    private final Vector3 centre;
+    private final double radius;
+    private final double radiusSquared;
+
+    /*
+     * point is any point in the plane, which textures are lined up with, and centre is the centre of the disk.
+     * These are different when a plane clipped by a bounding sphere is loaded as a disk, so that its texture doesn't move
+     */
+    public Disk(Vector3 point, Vector3 normal, Vector3 centre, double radius, ColorRGB colour, double kD, double kS, double alphaS, double reflectivity, String bumpMapImg, String textureMapImg, double textureScale, double textureRotation) {
+        super(point, normal, colour, kD, kS, alphaS, reflectivity, bumpMapImg, textureMapImg, textureScale, textureRotation, null, Double.POSITIVE_INFINITY, "<");
+        this.centre = centre;
+        this.radius = radius;
+        this.radiusSquared = radius * radius;
+        this.boundingCentre = centre;
+        this.boundingRadius = radius;
+    }
+
+    @Override
+    protected boolean contains(Vector3 position) {
+        Vector3 fromCentre = position.subtract(centre);
+        return fromCentre.dot(fromCentre) <= radiusSquared;
+    }
+}
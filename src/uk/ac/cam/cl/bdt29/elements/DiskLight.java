@@ -0,0 +1,29 @@
+package uk.ac.cam.cl.bdt29.elements;
+
+import uk.ac.cam.cl.bdt29.data_structures.ColorRGB;
+import uk.ac.cam.cl.bdt29.data_structures.Vector3;
+
+public class DiskLight extends AreaLight {
+
+    private final double radius;
+
+    // Directions across the disk, perpendicular to its normal
+    private final Vector3 tangent, bitangent;
+
+    public DiskLight(Vector3 position, Vector3 normal, double radius, ColorRGB colour, double intensity, int shadowSamples) {
+        super(position, colour, intensity, shadowSamples);
+        this.radius = radius;
+        Vector3[] tangents = getTangents(normal);
+        this.tangent = tangents[0];
+        this.bitangent = tangents[1];
+    }
+
+    // Stratified over the area of the disk, the square root keeps the samples evenly spread rather than bunched in the middle
+    @Override
+    public Vector3 sampleShadowPosition(Vector3 P, int sampleIndex, int sampleCount) {
+        double[] uv = stratifiedSample(sampleIndex, sampleCount);
+        double r = radius * Math.sqrt(uv[0]);
+        double phi = 2 * Math.PI * uv[1];
+        return getPosition().add(tangent.scale(r * Math.cos(phi))).add(bitangent.scale(r * Math.sin(phi)));
+    }
+}
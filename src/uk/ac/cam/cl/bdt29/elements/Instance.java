@@ -0,0 +1,124 @@
+package uk.ac.cam.cl.bdt29.elements;
+
+import uk.ac.cam.cl.bdt29.Ray;
+import uk.ac.cam.cl.bdt29.RaycastHit;
+import uk.ac.cam.cl.bdt29.data_structures.ColorRGB;
+import uk.ac.cam.cl.bdt29.data_structures.Transform;
+import uk.ac.cam.cl.bdt29.data_structures.Vector3;
+
+import java.util.Collection;
+import java.util.List;
+
+public class Instance extends SceneObject {
+    // A copy of a group of objects placed with its own rotation, uniform scale and translation.
+    // Rays are moved into the group's space rather than copying the objects, so any number of instances can share one group
+
+    // The shared objects, in their own space
+    private final List<SceneObject> group;
+
+    // Object space to world space is: world = rotation * (scale * local) + translation, and scale is kept for distances
+    private final Transform localToWorld;
+    private final Transform worldToLocal;
+    private final double scale;
+
+    public Instance(List<SceneObject> group, Vector3 translation, Vector3 rotation, double scale) {
+        this(group, Transform.rotation(rotation).scaled(scale).translated(translation), scale);
+    }
+
+    private Instance(List<SceneObject> group, Transform localToWorld, double scale) {
+        this.group = group;
+        this.localToWorld = localToWorld;
+        this.worldToLocal = localToWorld.getInverse();
+        this.scale = scale;
+        computeBounds();
+    }
+
+    // A copy of template moved by world = rotation * (scale * position) + translation, on top of its own transform
+    public Instance(Instance template, Transform rotation, double scale, Vector3 translation) {
+        this(template.group, rotation.scaled(scale).translated(translation).multiply(template.localToWorld), template.scale * scale);
+        this.name = template.name;
+        this.castsShadows = template.castsShadows;
+        this.receivesShadows = template.receivesShadows;
+    }
+
+    // Bound the group by a sphere around the average of its members' bounds, then move that into world space. The group
+    // is unbounded if any of its members is
+    private void computeBounds() {
+        Vector3 sum = new Vector3(0);
+        for (SceneObject object : group) {
+            if (!object.isBounded()) {
+                return;
+            }
+            sum = sum.add(object.getBoundingCentre());
+        }
+        Vector3 centre = sum.scale(1.0 / group.size());
+        double radius = 0;
+        for (SceneObject object : group) {
+            radius = Math.max(radius, object.getBoundingCentre().subtract(centre).magnitude() + object.getBoundingRadius());
+        }
+        boundingCentre = toWorld(centre);
+        boundingRadius = radius * scale;
+    }
+
+    // Move a ray into the group's space. The direction is renormalised, so distances are divided by scale
+    private Ray toLocal(Ray ray) {
+        Vector3 origin = worldToLocal.applyToPoint(ray.getOrigin());
+        Vector3 direction = worldToLocal.applyToVector(ray.getDirection()).normalised();
+        return new Ray(origin, direction, ray.getRefractiveIndex());
+    }
+
+    private Vector3 toWorld(Vector3 position) {
+        return localToWorld.applyToPoint(position);
+    }
+
+    @Override
+    public RaycastHit intersectionWith(Ray ray) {
+        Ray localRay = toLocal(ray);
+
+        RaycastHit closestHit = new RaycastHit();
+        for (SceneObject object : group) {
+            RaycastHit trialHit = object.intersectionWith(localRay);
+            if (trialHit.getDistance() < closestHit.getDistance()) {
+                closestHit = trialHit;
+            }
+        }
+        if (closestHit.getObjectHit() == null) {
+            return closestHit;
+        }
+
+        // the shaded object is still the shared one, but the hit is in world space with the local location kept for textures
+        double distance = closestHit.getDistance() * scale;
+        Vector3 normal = localToWorld.applyToVector(closestHit.getNormal()).normalised();
+        RaycastHit hit = new RaycastHit(closestHit.getObjectHit(), distance, ray.evaluateAt(distance), normal, closestHit.getLocalLocation(), this);
+        hit.copySurfaceCoordinates(closestHit);
+        return hit;
+    }
+
+    // The group's objects, plus moving the ray into their space
+    @Override
+    public long getIntersectionCost() {
+        long cost = 1;
+        for (SceneObject object : group) {
+            cost += object.getIntersectionCost();
+        }
+        return cost;
+    }
+
+    @Override
+    public ColorRGB filterTransmittance(Ray ray, double maxDistance, ColorRGB transmittance, Collection<SceneObject> blockers) {
+        Ray localRay = toLocal(ray);
+        ColorRGB filtered = transmittance;
+        for (SceneObject object : group) {
+            if (!object.castsShadows()) {
+                continue;
+            }
+            filtered = object.filterTransmittance(localRay, maxDistance / scale, filtered, blockers);
+        }
+        // moving this instance changes the shadow too, not just changing the shared objects, which other instances may
+        // already have added
+        if (blockers != null && filtered != transmittance) {
+            blockers.add(this);
+        }
+        return filtered;
+    }
+}
@@ -0,0 +1,139 @@
+package uk.ac.cam.cl.bdt29.elements;
+
+import uk.ac.cam.cl.bdt29.data_structures.ColorRGB;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class Material {
+    // The surface properties of an object. Materials never change once made, so any number of objects can share one,
+    // and everything the renderer would otherwise work out again on every hit is calculated once here
+
+    public static final double DEFAULT_KD = 0.8;
+    public static final double DEFAULT_KS = 1.2;
+    public static final double DEFAULT_ALPHA = 10;
+    public static final double DEFAULT_REFLECTIVITY = 0.3;
+    public static final double DEFAULT_REFRACTIVE_INDEX = 1.5;
+
+    // The number of steps in a specular lookup table between a cosine of 0 and 1
+    private static final int SPECULAR_TABLE_SIZE = 1024;
+
+    // Tables of cos^alpha, shared between every material with the same alpha
+    private static final Map<Double, double[]> SPECULAR_TABLES = new ConcurrentHashMap<>();
+
+    // The diffuse colour, textured objects replace this with their own
+    private final ColorRGB colour;
+
+    // Coefficients for calculating Phong illumination
+    private final double kD, kS, alpha;
+
+    // How reflective the surface is
+    private final double reflectivity;
+
+    // How much light is transmitted through the object (between 0 and 1)
+    private final ColorRGB transmittance;
+    private final double refractiveIndex;
+
+    // How rough the surface is, from 0 for a mirror finish. Reflections off a rough surface see the blurred copy of the
+    // environment map, as the detail of the full one would only show up as noise
+    private final double roughness;
+
+    // Derived terms
+    private final ColorRGB transmittanceComplement;
+    private final boolean opaque;
+    private final double[] specularTable;
+
+    public Material(ColorRGB colour, double kD, double kS, double alpha, double reflectivity, ColorRGB transmittance, double refractiveIndex) {
+        this(colour, kD, kS, alpha, reflectivity, transmittance, refractiveIndex, 0);
+    }
+
+    public Material(ColorRGB colour, double kD, double kS, double alpha, double reflectivity, ColorRGB transmittance,
+                    double refractiveIndex, double roughness) {
+        this.colour = colour;
+        this.kD = kD;
+        this.kS = kS;
+        this.alpha = alpha;
+        this.reflectivity = reflectivity;
+        this.transmittance = transmittance;
+        this.refractiveIndex = refractiveIndex;
+        this.roughness = roughness;
+
+        this.transmittanceComplement = new ColorRGB(1).subtract(transmittance);
+        this.opaque = transmittance.isZero();
+        this.specularTable = SPECULAR_TABLES.computeIfAbsent(alpha, Material::buildSpecularTable);
+    }
+
+    // An opaque material
+    public Material(ColorRGB colour, double kD, double kS, double alpha, double reflectivity) {
+        this(colour, kD, kS, alpha, reflectivity, new ColorRGB(0), DEFAULT_REFRACTIVE_INDEX);
+    }
+
+    private static double[] buildSpecularTable(double alpha) {
+        // one extra entry so that a cosine of exactly 1 can still be interpolated
+        double[] table = new double[SPECULAR_TABLE_SIZE + 2];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = Math.pow(Math.min(1, (double) i / SPECULAR_TABLE_SIZE), alpha);
+        }
+        return table;
+    }
+
+    // cos^alpha for a cosine between 0 and 1, interpolated from the table rather than calling Math.pow on every hit
+    public double specular(double cosine) {
+        double position = cosine * SPECULAR_TABLE_SIZE;
+        int i = (int) position;
+        double fraction = position - i;
+        return specularTable[i] + fraction * (specularTable[i + 1] - specularTable[i]);
+    }
+
+    public ColorRGB getColour() {
+        return colour;
+    }
+
+    public Material withColour(ColorRGB colour) {
+        return new Material(colour, kD, kS, alpha, reflectivity, transmittance, refractiveIndex, roughness);
+    }
+
+    public double getKD() {
+        return kD;
+    }
+
+    public double getKS() {
+        return kS;
+    }
+
+    public double getAlpha() {
+        return alpha;
+    }
+
+    public double getReflectivity() {
+        return reflectivity;
+    }
+
+    public Material withReflectivity(double reflectivity) {
+        return new Material(colour, kD, kS, alpha, reflectivity, transmittance, refractiveIndex, roughness);
+    }
+
+    public double getRoughness() {
+        return roughness;
+    }
+
+    public Material withRoughness(double roughness) {
+        return new Material(colour, kD, kS, alpha, reflectivity, transmittance, refractiveIndex, roughness);
+    }
+
+    public ColorRGB getTransmittance() {
+        return transmittance;
+    }
+
+    public ColorRGB getTransmittanceComplement() {
+        return transmittanceComplement;
+    }
+
+    public boolean isOpaque() {
+        return opaque;
+    }
+
+    public double getRefractiveIndex() {
+        return refractiveIndex;
+    }
+}
@@ -3,7 +3,7 @@ package uk.ac.cam.cl.bdt29.elements;
 import uk.ac.cam.cl.bdt29.Ray;
 import uk.ac.cam.cl.bdt29.RaycastHit;
 import uk.ac.cam.cl.bdt29.data_structures.ColorRGB;
-import uk.ac.cam.cl.bdt29.data_structures.SquareMatrix3;
+import uk.ac.cam.cl.bdt29.data_structures.Transform;
 import uk.ac.cam.cl.bdt29.data_structures.Vector3;
 
 import javax.imageio.ImageIO;
@@ -29,37 +29,32 @@ public class Plane extends SceneObject {
     public boolean bumpy = false;
     public boolean textured = false;
 
+    // Whether the plane is only rendered inside (<) or outside (>) of its bounding sphere
+    public enum BoundingOperator {
+        INSIDE, OUTSIDE
+    }
+
     private final Vector3 boundingSphereCentre;
     private final double boundingSphereRadius;
-    private final String boundingOperator;
+    private final BoundingOperator boundingOperator;
+
+    // Constants precomputed for intersectionWith
+    private final double d;
+    private final double boundingSphereRadiusSquared;
 
     public Plane(Vector3 point, Vector3 normal, ColorRGB colour) {
-        this.point = point;
-        this.normal = normal;
-        this.colour = colour;
-
-        this.phong_kD = DEFAULT_PLANE_KD;
-        this.phong_kS = DEFAULT_PLANE_KS;
-        this.phong_alpha = DEFAULT_PLANE_ALPHA;
-        this.reflectivity = DEFAULT_PLANE_REFLECTIVITY;
-        this.boundingSphereCentre = null;
-        this.boundingSphereRadius = Double.POSITIVE_INFINITY;
-        this.boundingOperator = "<";
+        this(point, normal, colour, DEFAULT_PLANE_KD, DEFAULT_PLANE_KS, DEFAULT_PLANE_ALPHA, DEFAULT_PLANE_REFLECTIVITY, null, null, 1, 0, null, Double.POSITIVE_INFINITY, "<");
     }
 
     public Plane(Vector3 point, Vector3 normal, ColorRGB colour, double kD, double kS, double alphaS, double reflectivity, String bumpMapImg, String textureMapImg, double textureScale, double textureRotation, Vector3 boundingCentre, double boudingRadius, String boundingOperator) {
         this.point = point;
         this.normal = normal;
-        this.colour = colour;
 
-        this.phong_kD = kD;
-        this.phong_kS = kS;
-        this.phong_alpha = alphaS;
-        this.reflectivity = reflectivity;
+        this.material = new Material(colour, kD, kS, alphaS, reflectivity);
 
         // if it has a bump map load the bump_map and set bumpy to be true, same for texturemap
         if (bumpMapImg != null) {
-            loadBumpMap(bumpMapImg);
+            this.bumpMap = new BumpMap(bumpMapImg);
             this.getMatrix();
             this.getPxPz();
             this.bumpy = true;
@@ -75,13 +70,23 @@ public class Plane extends SceneObject {
 
         this.boundingSphereCentre = boundingCentre;
         this.boundingSphereRadius = boudingRadius;
-        if (boundingOperator.equals("<") || boundingOperator.equals(">") ) {
-            this.boundingOperator = boundingOperator;
+        if (boundingOperator.equals(">")) {
+            this.boundingOperator = BoundingOperator.OUTSIDE;
         } else {
-            System.out.println("bounding operator not > or <, defualting to <");
-            this.boundingOperator = "<";
+            if (!boundingOperator.equals("<")) {
+                System.out.println("bounding operator not > or <, defualting to <");
+            }
+            this.boundingOperator = BoundingOperator.INSIDE;
         }
 
+        // P.N = d - plane
+        this.d = normal.dot(point);
+        this.boundingSphereRadiusSquared = boundingSphereRadius * boundingSphereRadius;
+        // only planes clipped to the inside of their bounding sphere are finite
+        if (boundingSphereCentre != null && this.boundingOperator == BoundingOperator.INSIDE && boundingSphereRadius < Double.POSITIVE_INFINITY) {
+            this.boundingCentre = boundingSphereCentre;
+            this.boundingRadius = boundingSphereRadius;
+        }
     }
 
     // Intersect this plane with a ray
@@ -92,7 +97,6 @@ public class Plane extends SceneObject {
         Vector3 D = ray.getDirection();
 
         // Get plane parameters
-        Vector3 Q = this.point;
         Vector3 N = this.normal;
 
         double dotprodND = N.dot(D);
@@ -100,7 +104,6 @@ public class Plane extends SceneObject {
         // P.N = d - plane
         // P = O + sD - line
         // (O + sD).N=d => O.N +s(D.N)=d => s = (d-O.N)/N.D
-        double d = N.dot(Q);
         double intersectionS = (d-dotprodNO)/dotprodND;
 
         if (intersectionS < 0) {
@@ -110,28 +113,40 @@ public class Plane extends SceneObject {
         // get the point of intersection
         Vector3 intersectionPoint = O.add(D.scale(intersectionS));
 
-        // if there is a bounding sphere then check if this is out of this bound
-        if (this.boundingOperator.equals(">")) {
-            // render if it is >, so return if it is <
-            if (boundingSphereCentre != null && intersectionPoint.subtract(boundingSphereCentre).magnitude() < boundingSphereRadius) {
-                return new RaycastHit();
-            }
-        } else {
-            if (boundingSphereCentre != null && intersectionPoint.subtract(boundingSphereCentre).magnitude() > boundingSphereRadius) {
-                return new RaycastHit();
-            }
+        if (!contains(intersectionPoint)) {
+            return new RaycastHit();
         }
 
+        if (!bumpy && !textured) {
+            // as the ray direction vector is normalised, the ray distance is intersectionS
+            return new RaycastHit(this, intersectionS, intersectionPoint, normal);
+        }
 
-        // get the normal to be used for shading
-        Vector3 shadingNormal = this.getNormalAt(intersectionPoint);
+        // the point is mapped onto the texture plane once, for both the bump map and the texture lookup
+        double mappedX = transformation.pointX(intersectionPoint.x, intersectionPoint.y, intersectionPoint.z);
+        double mappedZ = transformation.pointZ(intersectionPoint.x, intersectionPoint.y, intersectionPoint.z);
+        Vector3 shadingNormal = bumpy ? getBumpyNormal(mappedX, mappedZ) : normal;
+        RaycastHit hit = new RaycastHit(this, intersectionS, intersectionPoint, shadingNormal);
+        hit.setSurfaceCoordinates(mappedX, mappedZ);
+        return hit;
+    }
 
-        // as the ray direction vector is normalised, the ray distance is intersectionS
-        return new RaycastHit(this, intersectionS, intersectionPoint, shadingNormal);
+    // Whether a point in the plane is part of the rendered surface, subclasses with finite shapes override this
+    protected boolean contains(Vector3 position) {
+        // if there is a bounding sphere then check if this is out of this bound
+        if (boundingSphereCentre != null) {
+            Vector3 fromCentre = position.subtract(boundingSphereCentre);
+            double distanceSquared = fromCentre.dot(fromCentre);
+            if (boundingOperator == BoundingOperator.OUTSIDE) {
+                // render if it is >, so return if it is <
+                return distanceSquared >= boundingSphereRadiusSquared;
+            }
+            return distanceSquared <= boundingSphereRadiusSquared;
+        }
+        return true;
     }
 
     // Get normal to the plane
-    @Override
     public Vector3 getNormalAt(Vector3 position) {
         if (this.bumpy) {
             return this.getBumpyNormalAt(position);
@@ -140,64 +155,48 @@ public class Plane extends SceneObject {
     }
 
     @Override
-    public ColorRGB getColourAt (Vector3 position) {
-        if (textured) {
-            return getTextureColourAt(position);
+    protected boolean isTextured() {
+        return textured;
+    }
+
+    // The surface coordinates of a plane are x and z of the point mapped onto the texture plane
+    @Override
+    public boolean getSurfaceCoordinates(Vector3 position, SurfaceRecord surface) {
+        if (transformation == null) {
+            return false; // neither bumpy nor textured
         }
-        return super.getColourAt(position);
+        surface.u = transformation.pointX(position.x, position.y, position.z);
+        surface.v = transformation.pointZ(position.x, position.y, position.z);
+        return true;
     }
 
-    // load bump map and bump map methods and texture map too
-    private static final float BUMP_FACTOR = 5f;
+    // bump map and texture map, the bump map repeats every bumpScale units
     private static final double bumpScale = 3;
-    private float[][] heightMap;
-    private int bumpMapHeight;
-    private int bumpMapWidth;
+    private BumpMap bumpMap;
 
-    // Matrix properites
-    private SquareMatrix3 transformation;
-    private SquareMatrix3 inverse;
+    // Matrix properites, transformation takes a point on the plane to the texture's xz plane
+    private Transform transformation;
     private Vector3 axis;
     private Vector3 Px;
     private Vector3 Pz;
 
-    private void loadBumpMap (String bumpMapImg) {
-        try {
-            BufferedImage inputImg = ImageIO.read(new File(bumpMapImg));
-            bumpMapHeight = inputImg.getHeight();
-            bumpMapWidth = inputImg.getWidth();
-            heightMap = new float[bumpMapHeight][bumpMapWidth];
-            for (int row = 0; row < bumpMapHeight; row++) {
-                for (int col = 0; col < bumpMapWidth; col++) {
-                    float height = (float) (inputImg.getRGB(col, row) & 0xFF) / 0xFF;
-                    heightMap[row][col] = BUMP_FACTOR * height;
-                }
-            }
-        } catch (IOException e) {
-            System.err.println("Error creating bump map");
-            e.printStackTrace();
-        }
-    }
-
     private void getMatrix() {
         // matrix to rotate the texture on the xz plane, so a rotation around the y axis
         double deg_to_rad = (2*Math.PI)/360;
         double cosPhi = Math.cos(this.textureRot * deg_to_rad);
         double sinPhi = Math.sin(this.textureRot * deg_to_rad);
-        double[][] matInitRotate = {
-                {cosPhi,0,sinPhi},
-                {0,1,0},
-                {-sinPhi,0,cosPhi}
-        };
-        SquareMatrix3 rotate = new SquareMatrix3(matInitRotate);
+        Transform rotate = new Transform(
+                cosPhi,0,sinPhi,
+                0,1,0,
+                -sinPhi,0,cosPhi
+        );
 
         // Matrix properites
         Vector3 j = new Vector3(0, 1, 0);
         Vector3 Raxis = this.normal.cross(j);
         if (Raxis.isZero()) {
             // no need to rotate
-            this.transformation = rotate;
-            this.inverse = this.transformation.getInverse();
+            this.transformation = moveToOrigin(rotate);
             return;
         }
         // otherwise
@@ -206,67 +205,45 @@ public class Plane extends SceneObject {
         double cosTheta = this.normal.normalised().dot(j);
         double sinTheta = Math.sqrt(1 - Math.pow(cosTheta, 2));
 
-        double[][] matInitMap = {
-                {
-                        cosTheta + Math.pow(axis.x, 2) * (1 - cosTheta),
-                        -axis.z * sinTheta,
-                        axis.x * axis.z * (1 - cosTheta)
-                },{
+        Transform mapToXY = new Transform(
+                cosTheta + Math.pow(axis.x, 2) * (1 - cosTheta),
+                -axis.z * sinTheta,
+                axis.x * axis.z * (1 - cosTheta),
+
                 axis.z * sinTheta,
                 cosTheta,
-                axis.x * sinTheta
-        },{
+                axis.x * sinTheta,
+
                 axis.x * axis.z * (1 - cosTheta),
                 axis.x * sinTheta,
                 cosTheta + Math.pow(axis.z, 2) * (1 - cosTheta)
-        }
-        };
-
-        SquareMatrix3 mapToXY = new SquareMatrix3(matInitMap);
+        );
 
         // should be Rotate * Map * vector as we want to map first
-        this.transformation = rotate.multiply(mapToXY);
-        this.inverse = transformation.getInverse();
+        this.transformation = moveToOrigin(rotate.multiply(mapToXY));
+    }
+
+    // translate the plane to the origin by doing a translation of -a where a is a point on the plane, before rotating
+    private Transform moveToOrigin(Transform rotation) {
+        return rotation.translated(rotation.applyToVector(this.point).scale(-1));
     }
 
     private void getPxPz() {
         Vector3 i = new Vector3(1,0,0);
         Vector3 k = new Vector3(0,0,1);
 
-        Px = inverse.leftMultiplyVector(i);
-        Pz = inverse.leftMultiplyVector(k);
-    }
-
-    public double getHeightAt(int x, int z) {
-        x = x % bumpMapWidth;
-        z = z % bumpMapHeight;
-        if (x < 0) {
-            x += bumpMapWidth;
-        }
-        if (z < 0) {
-            z += bumpMapHeight;
-        }
-        return heightMap[z][x]; // gets the row first then the column, so y,x indexing
+        Px = transformation.getInverse().applyToVector(i);
+        Pz = transformation.getInverse().applyToVector(k);
     }
 
     public Vector3 getBumpyNormalAt(Vector3 position) {
-        Vector3 mappedPoint = mapVectortoXY(position);
-
-        // if 10 is the scale of the thingy then 10 should correspond to 1
-        double xVal = mappedPoint.x;
-        double zVal = mappedPoint.z;
-
-        // Scale corresponding to scale
-        int x = (int)((double)bumpMapWidth * (xVal / bumpScale));
-        int z = (int)((double)bumpMapHeight * (zVal / bumpScale));
-
-        // this way round makes the bumps go the correct way, not sure why its different
-        double Bu = getHeightAt(x,z) - getHeightAt(x+1,z);
-        double Bv = getHeightAt(x,z) - getHeightAt(x,z+1);
-
-        Vector3 newNormal = normal.add(Px.scale(Bu).add(Pz.scale(Bv))).normalised();
+        return getBumpyNormal(transformation.pointX(position.x, position.y, position.z),
+                transformation.pointZ(position.x, position.y, position.z));
+    }
 
-        return newNormal;
+    // The normal tilted by the bump map at (x, z) on the texture plane
+    private Vector3 getBumpyNormal(double xVal, double zVal) {
+        return bumpMap.perturb(normal, Px, Pz, xVal / bumpScale, zVal / bumpScale);
     }
 
     private ColorRGB[][] textureMap;
@@ -299,21 +276,16 @@ public class Plane extends SceneObject {
     }
 
     public Vector3 mapVectortoXY (Vector3 position) {
-        // translate the plane to the origin by doing a translation of -a where a is a point on the plane
-        Vector3 translatedPoint = position.subtract(this.point);
-        // Rotate using the rotation matrix rotating through an angle of newPoint . j
-        // Using an axis orthogonal to newPoint and j
-
-        Vector3 rotatedPoint = transformation.leftMultiplyVector(translatedPoint);
-        return rotatedPoint;
+        // the translation to the origin and the rotation through an angle of newPoint . j,
+        // using an axis orthogonal to newPoint and j, are one transform
+        return transformation.applyToPoint(position);
     }
 
-    public ColorRGB getTextureColourAt(Vector3 position) {
-        Vector3 mappedPoint = mapVectortoXY(position);
-
+    @Override
+    protected ColorRGB getTextureColourAt(SurfaceRecord surface) {
         // if 10 is the scale of the thingy then 10 should correspond to 1
-        double xVal = mappedPoint.x;
-        double zVal = mappedPoint.z;
+        double xVal = surface.u;
+        double zVal = surface.v;
 
         // Scale corresponding to scale
 
@@ -3,6 +3,9 @@ package uk.ac.cam.cl.bdt29.elements;
 import uk.ac.cam.cl.bdt29.data_structures.ColorRGB;
 import uk.ac.cam.cl.bdt29.data_structures.Vector3;
 
+import java.util.HashSet;
+import java.util.Set;
+
 public class PointLight {
 
     // Point light parameters
@@ -10,6 +13,10 @@ public class PointLight {
     private ColorRGB colour;
     private double intensity;
 
+    // Light linking, by object name. If include is not empty only the objects named in it are lit, and those named in exclude never are
+    private Set<String> include = new HashSet<>();
+    private Set<String> exclude = new HashSet<>();
+
     public PointLight(Vector3 position, ColorRGB colour, double intensity) {
         this.position = position;
         this.colour = colour;
@@ -32,4 +39,33 @@ public class PointLight {
     public ColorRGB getIlluminationAt(double distance) {
         return colour.scale(intensity / (Math.PI * 4 * Math.pow(distance, 2)));
     }
+
+    public void setLinks(Set<String> include, Set<String> exclude) {
+        this.include = include;
+        this.exclude = exclude;
+    }
+
+    // Whether this light reaches object, which is the shared object hit inside instance if that is not null.
+    // Either of them can be named in the include and exclude lists
+    public boolean illuminates(SceneObject object, SceneObject instance) {
+        if (include.isEmpty() && exclude.isEmpty()) {
+            return true;
+        }
+        String name = object.getName();
+        String instanceName = instance == null ? null : instance.getName();
+        if (exclude.contains(name) || exclude.contains(instanceName)) {
+            return false;
+        }
+        return include.isEmpty() || include.contains(name) || include.contains(instanceName);
+    }
+
+    // How many shadow rays are worth casting towards this light, a point light casts hard shadows so one is enough
+    public int getShadowSampleCount(int defaultCount) {
+        return 1;
+    }
+
+    // The point on the light that shadow ray sampleIndex of sampleCount, cast from P, should aim at
+    public Vector3 sampleShadowPosition(Vector3 P, int sampleIndex, int sampleCount) {
+        return position;
+    }
 }
@@ -0,0 +1,42 @@
+package uk.ac.cam.cl.bdt29.elements;
+
+import uk.ac.cam.cl.bdt29.data_structures.ColorRGB;
+import uk.ac.cam.cl.bdt29.data_structures.Vector3;
+
+public class Quad extends Plane {
+    // A parallelogram with one corner at a point and its sides along two edge vectors, which don't have to be perpendicular
+
+    private final Vector3 corner;
+    private final Vector3 edgeU, edgeV;
+
+    // Dual vectors of the edges, so that (P - corner).dualU is how far along edgeU the point P is, from 0 to 1
+    private final Vector3 dualU, dualV;
+
+    public Quad(Vector3 corner, Vector3 edgeU, Vector3 edgeV, ColorRGB colour, double kD, double kS, double alphaS, double reflectivity, String bumpMapImg, String textureMapImg, double textureScale, double textureRotation) {
+        super(corner, edgeU.cross(edgeV).normalised(), colour, kD, kS, alphaS, reflectivity, bumpMapImg, textureMapImg, textureScale, textureRotation, null, Double.POSITIVE_INFINITY, "<");
+        if (edgeU.cross(edgeV).magnitude() == 0) {
+            throw new RuntimeException("quad edges are parallel");
+        }
+        this.corner = corner;
+        this.edgeU = edgeU;
+        this.edgeV = edgeV;
+
+        // solve P - corner = a * edgeU + b * edgeV for a and b with the vectors perpendicular to the other edge in the plane
+        Vector3 n = edgeU.cross(edgeV);
+        double nSquared = n.dot(n);
+        dualU = edgeV.cross(n).scale(1 / nSquared);
+        dualV = n.cross(edgeU).scale(1 / nSquared);
+
+        Vector3 diagonal = edgeU.add(edgeV);
+        boundingCentre = corner.add(diagonal.scale(0.5));
+        boundingRadius = Math.max(diagonal.magnitude(), edgeU.subtract(edgeV).magnitude()) / 2;
+    }
+
+    @Override
+    protected boolean contains(Vector3 position) {
+        Vector3 fromCorner = position.subtract(corner);
+        double a = fromCorner.dot(dualU);
+        double b = fromCorner.dot(dualV);
+        return a >= 0 && a <= 1 && b >= 0 && b <= 1;
+    }
+}
@@ -0,0 +1,38 @@
+package uk.ac.cam.cl.bdt29.elements;
+
+import uk.ac.cam.cl.bdt29.data_structures.ColorRGB;
+import uk.ac.cam.cl.bdt29.data_structures.Vector3;
+
+public class Rectangle extends Plane {
+    // A rectangle centred on a point, with its sides along two perpendicular edge vectors
+
+    private final Vector3 centre;
+    private final Vector3 edgeU, edgeV;
+
+    // Unit vectors along the edges and half the length of each
+    private final Vector3 axisU, axisV;
+    private final double halfU, halfV;
+
+    public Rectangle(Vector3 centre, Vector3 edgeU, Vector3 edgeV, ColorRGB colour, double kD, double kS, double alphaS, double reflectivity, String bumpMapImg, String textureMapImg, double textureScale, double textureRotation) {
+        super(centre, edgeU.cross(edgeV).normalised(), colour, kD, kS, alphaS, reflectivity, bumpMapImg, textureMapImg, textureScale, textureRotation, null, Double.POSITIVE_INFINITY, "<");
+        if (Math.abs(edgeU.dot(edgeV)) > 1e-6 * edgeU.magnitude() * edgeV.magnitude()) {
+            throw new RuntimeException("rectangle edges are not perpendicular, use a quad instead");
+        }
+        this.centre = centre;
+        this.edgeU = edgeU;
+        this.edgeV = edgeV;
+
+        halfU = edgeU.magnitude() / 2;
+        halfV = edgeV.magnitude() / 2;
+        axisU = edgeU.normalised();
+        axisV = edgeV.normalised();
+        boundingCentre = centre;
+        boundingRadius = Math.sqrt(halfU * halfU + halfV * halfV);
+    }
+
+    @Override
+    protected boolean contains(Vector3 position) {
+        Vector3 fromCentre = position.subtract(centre);
+        return Math.abs(fromCentre.dot(axisU)) <= halfU && Math.abs(fromCentre.dot(axisV)) <= halfV;
+    }
+}
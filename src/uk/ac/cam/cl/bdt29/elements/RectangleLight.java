@@ -0,0 +1,101 @@
+package uk.ac.cam.cl.bdt29.elements;
+
+import uk.ac.cam.cl.bdt29.data_structures.ColorRGB;
+import uk.ac.cam.cl.bdt29.data_structures.Vector3;
+
+public class RectangleLight extends AreaLight {
+
+    // The full edges of the rectangle, which is centred on its position
+    private final Vector3 edgeU, edgeV;
+
+    // Unit vectors along the edges and the rectangle's normal, and its corner at -edgeU/2 - edgeV/2
+    private final Vector3 axisU, axisV, axisN;
+    private final Vector3 corner;
+    private final double lengthU, lengthV;
+
+    // Solid angle sampling needs the edges to be at right angles, a skewed rectangle is sampled by area instead
+    private final boolean rightAngled;
+
+    public RectangleLight(Vector3 position, Vector3 edgeU, Vector3 edgeV, ColorRGB colour, double intensity, int shadowSamples) {
+        super(position, colour, intensity, shadowSamples);
+        this.edgeU = edgeU;
+        this.edgeV = edgeV;
+        this.lengthU = edgeU.magnitude();
+        this.lengthV = edgeV.magnitude();
+        this.axisU = edgeU.scale(1 / lengthU);
+        this.axisV = edgeV.scale(1 / lengthV);
+        this.axisN = axisU.cross(axisV);
+        this.corner = position.subtract(edgeU.scale(0.5)).subtract(edgeV.scale(0.5));
+        this.rightAngled = Math.abs(axisU.dot(axisV)) < 1e-6;
+    }
+
+    /*
+     * Stratified over the solid angle the rectangle fills as seen from P (Urena et al., 2013), so each shadow ray stands for
+     * an equal share of what P sees of the light, however close or slanted the light is. The square is mapped onto the
+     * rectangle's projection on the sphere around P, first picking a column by its share of the solid angle and then a
+     * point up that column
+     */
+    @Override
+    public Vector3 sampleShadowPosition(Vector3 P, int sampleIndex, int sampleCount) {
+        double[] uv = stratifiedSample(sampleIndex, sampleCount);
+        if (!rightAngled) {
+            return sampleArea(uv);
+        }
+
+        // the rectangle in a frame centred on P, with the rectangle in front of P along -z
+        Vector3 d = corner.subtract(P);
+        Vector3 z = axisN;
+        double z0 = d.dot(z);
+        if (z0 > 0) {
+            z = z.scale(-1);
+            z0 = -z0;
+        }
+        if (z0 > -1e-9) {
+            // P is in the plane of the rectangle and sees it edge on
+            return sampleArea(uv);
+        }
+        double x0 = d.dot(axisU), y0 = d.dot(axisV);
+        double x1 = x0 + lengthU, y1 = y0 + lengthV;
+
+        // the normals of the planes through P and each edge, and the angles of the spherical rectangle between them
+        Vector3 v00 = new Vector3(x0, y0, z0), v01 = new Vector3(x0, y1, z0);
+        Vector3 v10 = new Vector3(x1, y0, z0), v11 = new Vector3(x1, y1, z0);
+        Vector3 n0 = v00.cross(v10).normalised();
+        Vector3 n1 = v10.cross(v11).normalised();
+        Vector3 n2 = v11.cross(v01).normalised();
+        Vector3 n3 = v01.cross(v00).normalised();
+        double g0 = Math.acos(clamp(-n0.dot(n1), -1, 1));
+        double g1 = Math.acos(clamp(-n1.dot(n2), -1, 1));
+        double g2 = Math.acos(clamp(-n2.dot(n3), -1, 1));
+        double g3 = Math.acos(clamp(-n3.dot(n0), -1, 1));
+        double k = 2 * Math.PI - g2 - g3;
+        double solidAngle = g0 + g1 - k;
+        if (!(solidAngle > 1e-9)) {
+            return sampleArea(uv);
+        }
+
+        // the column holding a u share of the solid angle
+        double au = uv[0] * solidAngle + k;
+        double fu = (Math.cos(au) * n0.z - n2.z) / Math.sin(au);
+        double cu = clamp(Math.copySign(1, fu) / Math.sqrt(fu * fu + n0.z * n0.z), -1, 1);
+        double xu = clamp(-cu * z0 / Math.sqrt(Math.max(1e-12, 1 - cu * cu)), x0, x1);
+
+        // the height up that column holding a v share of it
+        double distance = Math.sqrt(xu * xu + z0 * z0);
+        double h0 = y0 / Math.sqrt(distance * distance + y0 * y0);
+        double h1 = y1 / Math.sqrt(distance * distance + y1 * y1);
+        double hv = h0 + uv[1] * (h1 - h0);
+        double yv = hv * hv < 1 - 1e-9 ? hv * distance / Math.sqrt(1 - hv * hv) : y1;
+
+        return corner.add(axisU.scale(xu - x0)).add(axisV.scale(clamp(yv, y0, y1) - y0));
+    }
+
+    // Stratified over the area of the rectangle
+    private Vector3 sampleArea(double[] uv) {
+        return getPosition().add(edgeU.scale(uv[0] - 0.5)).add(edgeV.scale(uv[1] - 0.5));
+    }
+
+    private static double clamp(double x, double min, double max) {
+        return Math.max(min, Math.min(max, x));
+    }
+}
@@ -1,72 +1,185 @@
 package uk.ac.cam.cl.bdt29.elements;
 
 import uk.ac.cam.cl.bdt29.Ray;
+import uk.ac.cam.cl.bdt29.RayPacket;
 import uk.ac.cam.cl.bdt29.RaycastHit;
 import uk.ac.cam.cl.bdt29.data_structures.ColorRGB;
 import uk.ac.cam.cl.bdt29.data_structures.Vector3;
 
+import java.util.Collection;
+
 public abstract class SceneObject {
 
-    // The diffuse colour of the object
-    protected ColorRGB colour;
+    // The surface properties of the object, which may be shared with other objects
+    protected Material material;
 
-    // Coefficients for calculating Phong illumination
-    protected double phong_kD, phong_kS, phong_alpha;
+    // The name lights use to link to this object, or null if it has none
+    protected String name = null;
 
-    // How reflective this object is
-    protected double reflectivity;
+    // Objects that don't cast shadows are left out of shadow tests, and objects that don't receive them skip shadow tests altogether
+    protected boolean castsShadows = true;
+    protected boolean receivesShadows = true;
 
-    // How much light is transmitted through the object (between 0 and 1)
-    protected ColorRGB transmittance;
-    protected double refractive_index;
+    // A sphere containing the whole object, set by the constructor, the centre is null if the object is unbounded
+    protected Vector3 boundingCentre = null;
+    protected double boundingRadius = Double.POSITIVE_INFINITY;
 
     protected SceneObject() {
-        colour = new ColorRGB(1);
-        phong_kD = phong_kS = phong_alpha = reflectivity = 0;
-        refractive_index = 1.5;
-        transmittance = new ColorRGB(0);
+        material = new Material(new ColorRGB(1), 0, 0, 0, 0);
+    }
+
+    // Share the surface properties of another object, for copies made by the scene loader
+    protected SceneObject(SceneObject template) {
+        material = template.material;
+        name = template.name;
+        castsShadows = template.castsShadows;
+        receivesShadows = template.receivesShadows;
     }
 
     // Intersect this object with ray
     public abstract RaycastHit intersectionWith(Ray ray);
 
-    // Get normal to object at position
-    public abstract Vector3 getNormalAt(Vector3 position);
+    // Intersect this object with every ray in the packet, keeping each hit that is closer than the one already found
+    public void intersectPacket(RayPacket packet) {
+        for (int i = 0; i < packet.size(); i++) {
+            packet.offerHit(i, intersectionWith(packet.getRay(i)));
+        }
+    }
+
+    // About how many simple intersection tests a ray against this object costs, for sharing out the work of a render
+    public long getIntersectionCost() {
+        return 1;
+    }
+
+    public boolean isBounded() {
+        return boundingCentre != null;
+    }
+
+    public Vector3 getBoundingCentre() {
+        return boundingCentre;
+    }
+
+    public double getBoundingRadius() {
+        return boundingRadius;
+    }
+
+    /*
+     * Scale the transmittance of a shadow ray by this object if the ray passes through it before maxDistance.
+     * Any object that filtered the light is added to blockers (if it is not null). The transmittance passed in is
+     * returned as it is if nothing filtered the light, so callers can tell whether the ray touched the object.
+     */
+    public ColorRGB filterTransmittance(Ray ray, double maxDistance, ColorRGB transmittance, Collection<SceneObject> blockers) {
+        RaycastHit trialHit = intersectionWith(ray);
+        if (trialHit.getDistance() > 0 && trialHit.getDistance() < maxDistance) {
+            ColorRGB scaleTransmittance = trialHit.getObjectHit().getTransmittance();
+            transmittance = transmittance.scale(scaleTransmittance);
+            if (blockers != null) {
+                blockers.add(trialHit.getObjectHit());
+            }
+        }
+        return transmittance;
+    }
 
     public ColorRGB getColourAt(Vector3 position) {
-        return colour;
+        if (!isTextured()) {
+            return material.getColour();
+        }
+        SurfaceRecord surface = new SurfaceRecord();
+        getSurfaceCoordinates(position, surface);
+        return getTextureColourAt(surface);
+    }
+
+    /*
+     * The colour where the hit landed. Textured objects use the surface coordinates the hit already has if it was given
+     * any, otherwise they are worked out into surface, which the caller can reuse for every hit
+     */
+    public ColorRGB getColourAt(RaycastHit hit, SurfaceRecord surface) {
+        if (!isTextured()) {
+            return material.getColour();
+        }
+        if (!hit.getSurfaceCoordinates(surface)) {
+            getSurfaceCoordinates(hit.getLocalLocation(), surface);
+        }
+        return getTextureColourAt(surface);
+    }
+
+    // Whether the colour comes from a texture rather than the material
+    protected boolean isTextured() {
+        return false;
+    }
+
+    // Write where position, in the object's own space, is on its surface into surface. Returns false if the object doesn't map its surface
+    public boolean getSurfaceCoordinates(Vector3 position, SurfaceRecord surface) {
+        return false;
+    }
+
+    // The texture colour at the surface coordinates, only called on textured objects
+    protected ColorRGB getTextureColourAt(SurfaceRecord surface) {
+        return material.getColour();
     }
 
     public void setColour(ColorRGB colour) {
-        this.colour = colour;
+        this.material = material.withColour(colour);
+    }
+
+    public Material getMaterial() {
+        return material;
+    }
+
+    public void setMaterial(Material material) {
+        this.material = material;
     }
 
     public double getPhong_kD() {
-        return phong_kD;
+        return material.getKD();
     }
 
     public double getPhong_kS() {
-        return phong_kS;
+        return material.getKS();
     }
 
     public double getPhong_alpha() {
-        return phong_alpha;
+        return material.getAlpha();
     }
 
     public double getReflectivity() {
-        return reflectivity;
+        return material.getReflectivity();
     }
 
-    public boolean isTransmissive() { return !transmittance.isZero(); }
+    public boolean isTransmissive() { return !material.isOpaque(); }
 
-    public ColorRGB getTransmittance() { return transmittance; }
+    public ColorRGB getTransmittance() { return material.getTransmittance(); }
 
     public double getRefractiveIndex() {
-        return refractive_index;
+        return material.getRefractiveIndex();
     }
 
     public void setReflectivity(double reflectivity) {
-        this.reflectivity = reflectivity;
+        this.material = material.withReflectivity(reflectivity);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public boolean castsShadows() {
+        return castsShadows;
+    }
+
+    public void setCastsShadows(boolean castsShadows) {
+        this.castsShadows = castsShadows;
+    }
+
+    public boolean receivesShadows() {
+        return receivesShadows;
+    }
+
+    public void setReceivesShadows(boolean receivesShadows) {
+        this.receivesShadows = receivesShadows;
     }
 }
 
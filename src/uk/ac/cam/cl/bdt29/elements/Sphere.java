@@ -3,7 +3,7 @@ package uk.ac.cam.cl.bdt29.elements;
 import uk.ac.cam.cl.bdt29.Ray;
 import uk.ac.cam.cl.bdt29.RaycastHit;
 import uk.ac.cam.cl.bdt29.data_structures.ColorRGB;
-import uk.ac.cam.cl.bdt29.data_structures.Tuple;
+import uk.ac.cam.cl.bdt29.data_structures.Transform;
 import uk.ac.cam.cl.bdt29.data_structures.Vector3;
 
 import javax.imageio.ImageIO;
@@ -29,38 +29,38 @@ public class Sphere extends SceneObject {
     // The radius of the sphere in world units
     private final double radius;
 
+    public double getRadius() {
+        return radius;
+    }
+
+    // Whether the sphere has no texture or bump map, so it can be packed into a SphereSet
+    public boolean isPlain() {
+        return !bumpy && !textured;
+    }
+
+    // Constants precomputed for intersectionWith
+    private final double radiusSquared;
+
     // bumpy and textured booleans
     public boolean bumpy = false;
     public boolean textured = false;
 
     public Sphere(Vector3 position, double radius, ColorRGB colour) {
-        this.position = position;
-        this.radius = radius;
-        this.colour = colour;
-
-        this.phong_kD = DEFAULT_SPHERE_KD;
-        this.phong_kS = DEFAULT_SPHERE_KS;
-        this.phong_alpha = DEFAULT_SPHERE_ALPHA;
-        this.reflectivity = DEFAULT_SPHERE_REFLECTIVITY;
-        this.transmittance = new ColorRGB(0);
-        this.refractive_index = DEFAULT_SPHERE_REFRACTIVE_INDEX;
+        this(position, radius, colour, DEFAULT_SPHERE_KD, DEFAULT_SPHERE_KS, DEFAULT_SPHERE_ALPHA, DEFAULT_SPHERE_REFLECTIVITY, new ColorRGB(0), DEFAULT_SPHERE_REFRACTIVE_INDEX, null, null);
     }
 
     public Sphere(Vector3 position, double radius, ColorRGB colour, double kD, double kS, double alphaS, double reflectivity, ColorRGB transmittance, double refractiveIndex, String bumpMapImg, String textureMapImg) {
         this.position = position;
         this.radius = radius;
-        this.colour = colour;
+        this.radiusSquared = radius * radius;
+        this.boundingCentre = position;
+        this.boundingRadius = radius;
 
-        this.phong_kD = kD;
-        this.phong_kS = kS;
-        this.phong_alpha = alphaS;
-        this.reflectivity = reflectivity;
-        this.transmittance = transmittance;
-        this.refractive_index = refractiveIndex;
+        this.material = new Material(colour, kD, kS, alphaS, reflectivity, transmittance, refractiveIndex);
 
         // if it has a bump map load the bump_map and set bumpy to be true, same for texturemap
         if (bumpMapImg != null) {
-            loadBumpMap(bumpMapImg);
+            this.bumpMap = new BumpMap(bumpMapImg);
             this.bumpy = true;
         };
         if (textureMapImg != null) {
@@ -69,6 +69,23 @@ public class Sphere extends SceneObject {
         };
     }
 
+    // A copy of template moved by world = rotation * (scale * position) + translation, sharing its texture and bump map
+    public Sphere(Sphere template, Transform rotation, double scale, Vector3 translation) {
+        super(template);
+        this.position = rotation.scaled(scale).translated(translation).applyToPoint(template.position);
+        this.radius = template.radius * scale;
+        this.radiusSquared = radius * radius;
+        this.boundingCentre = position;
+        this.boundingRadius = radius;
+
+        this.bumpy = template.bumpy;
+        this.bumpMap = template.bumpMap;
+        this.textured = template.textured;
+        this.textureMap = template.textureMap;
+        this.textureMapHeight = template.textureMapHeight;
+        this.textureMapWidth = template.textureMapWidth;
+    }
+
     /*
      * Calculate intersection of the sphere with the ray. If the ray starts inside the sphere,
      * intersection with the surface is also found.
@@ -80,24 +97,26 @@ public class Sphere extends SceneObject {
 
         // Get sphere parameters
         Vector3 C = position;
-        double r = radius;
+        Vector3 CO = O.subtract(C);
+        double distanceSquared = CO.dot(CO);
 
         // Calculate quadratic coefficients
         double a = D.dot(D);
-        double b = 2 * D.dot(O.subtract(C));
-        double c = (O.subtract(C)).dot(O.subtract(C)) - Math.pow(r, 2);
+        double b = 2 * D.dot(CO);
+        double c = distanceSquared - radiusSquared;
 
         // quadratic in s, where the ray is O+sD.
         // check discriminant
-        double disc = Math.pow(b,2) - 4 * a * c;
+        double disc = b * b - 4 * a * c;
 
         if (disc < 0) {
             // disc < 0, so there was no intersection
             return new RaycastHit();
         }
 
-        double intersect1 = (-b - Math.sqrt(disc)) / (2 * a);
-        double intersect2 = (-b + Math.sqrt(disc)) / (2 * a);
+        double sqrtDisc = Math.sqrt(disc);
+        double intersect1 = (-b - sqrtDisc) / (2 * a);
+        double intersect2 = (-b + sqrtDisc) / (2 * a);
         double intersectionS;
 
         if (intersect1 < 0 && intersect2 < 0) {
@@ -116,14 +135,24 @@ public class Sphere extends SceneObject {
         Vector3 intersectionPoint = O.add(D.scale(intersectionS));
 
         // check whether the ray started inside or outside the sphere
-        double distance = O.subtract(C).magnitude();
-        int sign = (distance >= radius) ? 1 : -1;
+        int sign = (distanceSquared >= radiusSquared) ? 1 : -1;
 
-        // get the normal vector
-        Vector3 normal = this.getNormalAt(intersectionPoint).scale(sign);
+        Vector3 normal = intersectionPoint.subtract(this.position).normalised();
+        if (!bumpy && !textured) {
+            // as the ray direction vector is normalised, the ray distance is intersectionS
+            return new RaycastHit(this, intersectionS, intersectionPoint, normal.scale(sign));
+        }
 
-        // as the ray direction vector is normalised, the ray distance is intersectionS
-        return new RaycastHit(this, intersectionS, intersectionPoint, normal);
+        // the angles are worked out once here and kept in the hit for the texture lookup
+        double cosTheta = Math.max(-1, Math.min(1, normal.y));
+        double phi = getPhi(normal);
+        double theta = Math.acos(cosTheta);
+        if (bumpy) {
+            normal = getBumpyNormal(normal, phi, theta, cosTheta);
+        }
+        RaycastHit hit = new RaycastHit(this, intersectionS, intersectionPoint, normal.scale(sign));
+        hit.setSurfaceCoordinates(phi, theta);
+        return hit;
     }
 
     // Get normal to surface at position
@@ -134,46 +163,24 @@ public class Sphere extends SceneObject {
 
         return position.subtract(this.position).normalised();
     }
+
     @Override
-    public ColorRGB getColourAt (Vector3 position) {
-        if (textured) {
-            return getTextureColourAt(position);
-        }
-        return super.getColourAt(position);
+    protected boolean isTextured() {
+        return textured;
     }
 
     // Bump map and texture map functions
-    private float BUMP_FACTOR = 5f;
-    private float[][] heightMap = null;
-    private int bumpMapHeight;
-    private int bumpMapWidth;
+    private BumpMap bumpMap = null;
 
-    private void loadBumpMap(String bumpMapImg) {
-        try {
-            BufferedImage inputImg = ImageIO.read(new File(bumpMapImg));
-            bumpMapHeight = inputImg.getHeight();
-            bumpMapWidth = inputImg.getWidth();
-            heightMap = new float[bumpMapHeight][bumpMapWidth];
-            for (int row = 0; row < bumpMapHeight; row++) {
-                for (int col = 0; col < bumpMapWidth; col++) {
-                    float height = (float) (inputImg.getRGB(col, row) & 0xFF) / 0xFF;
-                    heightMap[row][col] = BUMP_FACTOR * height;
-                }
-            }
-        } catch (IOException e) {
-            System.err.println("Error creating bump map");
-            e.printStackTrace();
-        }
+    // The rotation around y from x, between 0 and 2 pi, of a point with the given unit normal
+    private static double getPhi(Vector3 normal) {
+        double phi = Math.atan2(normal.z, normal.x);
+        return phi < 0 ? phi + 2 * Math.PI : phi;
     }
 
-    public double getHeightAt(int u, int v) {
-        u = u % bumpMapWidth;
-        v = v % bumpMapHeight;
-
-        return heightMap[v][u]; // gets the row first then the column, so y,x indexing
-    };
-
-    public Tuple<Double> getPhiTheta (Vector3 position) {
+    // The surface coordinates of a sphere are u = phi and v = theta
+    @Override
+    public boolean getSurfaceCoordinates(Vector3 position, SurfaceRecord surface) {
         Vector3 normal = position.subtract(this.position).normalised();
         // We are going to use phi as the rotation around the xz from x anticlockwise plane and theta as the declination from y+.
         // |r| = 1
@@ -183,49 +190,36 @@ public class Sphere extends SceneObject {
         // Fx = sin theta * cos phi
         // Fy = cos theta
         // Fz = sin theta * sin phi
-
-        // Get the phi and theta arguments
-        double theta = Math.acos(normal.y); // 0 - pi
-        double sin_theta = Math.sin(theta); // >= 0
-        double phi; // 0 - 2pi
-        if (normal.z >= 0) {
-            phi = Math.acos(normal.x / sin_theta); // 0 to pi
-        } else {
-            phi = 2 * Math.PI - Math.acos(normal.x / sin_theta); // 2pi - acos is z is negative
-        }
-        return new Tuple<>(phi, theta);
-    };
-
-    public Tuple<Integer> getUV (double phi, double theta) {
-        int u = (int)((double)textureMapWidth * (phi / (2 * Math.PI)));
-        int v = (int)((double)textureMapHeight * (theta / Math.PI));
-        return new Tuple<>(u,v);
+        surface.u = getPhi(normal);
+        surface.v = Math.acos(Math.max(-1, Math.min(1, normal.y))); // 0 - pi
+        return true;
     }
 
     public Vector3 getBumpyNormalAt(Vector3 position) {
         Vector3 normal = position.subtract(this.position).normalised();
-        Tuple<Double> phiTheta = getPhiTheta(position);
-        double phi = phiTheta.a;
-        double theta = phiTheta.b;
+        double cosTheta = Math.max(-1, Math.min(1, normal.y));
+        return getBumpyNormal(normal, getPhi(normal), Math.acos(cosTheta), cosTheta);
+    }
+
+    /*
+     * Tilt the unit normal by the bump map at (phi, theta). The sines and cosines of the angles come straight from the normal,
+     * as Fx = sin theta * cos phi, Fy = cos theta, Fz = sin theta * sin phi, rather than from the trig functions
+     */
+    private Vector3 getBumpyNormal(Vector3 normal, double phi, double theta, double cosTheta) {
+        double sinTheta = Math.sqrt(Math.max(0, 1 - cosTheta * cosTheta));
+        // phi is arbitrary at the poles
+        double cosPhi = sinTheta > 0 ? normal.x / sinTheta : 1;
+        double sinPhi = sinTheta > 0 ? normal.z / sinTheta : 0;
 
         // Pu is the unit vector is the direction of d phi
-        // d/dphi (Fx, Fy, Fz) = (-sin theta * sin phi, 0, sin theta * cos phi), normalised = (cos phi, 0, - sin phi)
-        Vector3 Pu = new Vector3(-Math.sin(phi), 0, Math.cos(phi));
+        // d/dphi (Fx, Fy, Fz) = (-sin theta * sin phi, 0, sin theta * cos phi), normalised = (-sin phi, 0, cos phi)
+        Vector3 Pu = new Vector3(-sinPhi, 0, cosPhi);
 
         // Pv is the unit vector in the direction of d theta
         // d/d theta (Fx, Fy, Fz) = (cos theta * cos phi, -sin theta, cos theta * sin phi)
-        Vector3 Pv = new Vector3(Math.cos(theta) * Math.cos(phi), -Math.sin(theta), Math.cos(theta) * Math.sin(phi));
-
-        Tuple<Integer> uv = getUV(phi, theta);
-        int u = uv.a;
-        int v = uv.b;
+        Vector3 Pv = new Vector3(cosTheta * cosPhi, -sinTheta, cosTheta * sinPhi);
 
-        // Bu and Bv are the changes of height in the u and v directions
-        // this way round makes the bumps go the correct way, not sure why its different
-        double Bu = getHeightAt(u,v) - getHeightAt(u+1,v);
-        double Bv = getHeightAt(u,v) - getHeightAt(u,v+1);
-
-        return normal.add(Pu.scale(Bu).add(Pv.scale(Bv))).normalised();
+        return bumpMap.perturb(normal, Pu, Pv, phi / (2 * Math.PI), theta / Math.PI);
     }
 
     private ColorRGB[][] textureMap;
@@ -255,19 +249,15 @@ public class Sphere extends SceneObject {
         }
     }
 
-    public ColorRGB getTextureColourAt(Vector3 position) {
-        Tuple<Double> phiTheta = getPhiTheta(position);
-        double phi = phiTheta.a;
-        double theta = phiTheta.b;
-
-        // get coordinates
-        Tuple<Integer> uv = getUV(phi, theta);
-        int u = uv.a;
-        int v = uv.b;
+    @Override
+    protected ColorRGB getTextureColourAt(SurfaceRecord surface) {
+        // get coordinates, theta is exactly pi at the bottom pole
+        int u = Math.min((int)((double)textureMapWidth * (surface.u / (2 * Math.PI))), textureMapWidth - 1);
+        int v = Math.min((int)((double)textureMapHeight * (surface.v / Math.PI)), textureMapHeight - 1);
 
         // get colour at those coordinates and return it
         return textureMap[v][u];
-    };
+    }
 
 }
 
@@ -0,0 +1,58 @@
+package uk.ac.cam.cl.bdt29.elements;
+
+import uk.ac.cam.cl.bdt29.data_structures.ColorRGB;
+import uk.ac.cam.cl.bdt29.data_structures.Vector3;
+
+public class SphereLight extends AreaLight {
+
+    private final double radius;
+
+    public SphereLight(Vector3 position, double radius, ColorRGB colour, double intensity, int shadowSamples) {
+        super(position, colour, intensity, shadowSamples);
+        this.radius = radius;
+    }
+
+    public double getRadius() {
+        return radius;
+    }
+
+    /*
+     * Sample the cone of directions from P that hit the sphere uniformly by solid angle, then return where that direction meets
+     * the near side of the sphere. Unlike picking a random point inside the sphere, every sample is equally important as seen from P
+     */
+    @Override
+    public Vector3 sampleShadowPosition(Vector3 P, int sampleIndex, int sampleCount) {
+        double[] uv = stratifiedSample(sampleIndex, sampleCount);
+        Vector3 toCentre = getPosition().subtract(P);
+        double distance = toCentre.magnitude();
+
+        if (distance <= radius) {
+            // inside the light, so every direction reaches it; pick uniformly over the whole sphere instead
+            double cosTheta = 1 - 2 * uv[0];
+            double sinTheta = Math.sqrt(Math.max(0, 1 - cosTheta * cosTheta));
+            double phi = 2 * Math.PI * uv[1];
+            return getPosition().add(new Vector3(sinTheta * Math.cos(phi), sinTheta * Math.sin(phi), cosTheta).scale(radius));
+        }
+
+        // cos of the half angle of the cone that the sphere fills
+        double sinThetaMax = radius / distance;
+        double cosThetaMax = Math.sqrt(Math.max(0, 1 - sinThetaMax * sinThetaMax));
+
+        // uniform in solid angle means uniform in cos theta between cosThetaMax and 1
+        double cosTheta = 1 - uv[0] * (1 - cosThetaMax);
+        double sinTheta = Math.sqrt(Math.max(0, 1 - cosTheta * cosTheta));
+        double phi = 2 * Math.PI * uv[1];
+
+        Vector3 axis = toCentre.scale(1 / distance);
+        Vector3[] tangents = getTangents(axis);
+        Vector3 direction = axis.scale(cosTheta)
+                .add(tangents[0].scale(sinTheta * Math.cos(phi)))
+                .add(tangents[1].scale(sinTheta * Math.sin(phi)));
+
+        // closest intersection of P + t * direction with the sphere, the discriminant can only be negative from rounding at the edge
+        double b = direction.dot(toCentre);
+        double disc = b * b - (distance * distance - radius * radius);
+        double t = b - Math.sqrt(Math.max(0, disc));
+        return P.add(direction.scale(t));
+    }
+}
@@ -0,0 +1,290 @@
+package uk.ac.cam.cl.bdt29.elements;
+
+import uk.ac.cam.cl.bdt29.Precision;
+import uk.ac.cam.cl.bdt29.Ray;
+import uk.ac.cam.cl.bdt29.RayPacket;
+import uk.ac.cam.cl.bdt29.RaycastHit;
+import uk.ac.cam.cl.bdt29.data_structures.ColorRGB;
+import uk.ac.cam.cl.bdt29.data_structures.Vector3;
+
+import java.util.Collection;
+import java.util.List;
+
+public class SphereSet extends SceneObject {
+    // Many plain (untextured, unbumped) spheres packed into flat arrays, so that a ray can be tested against all of them in one loop
+
+    // Centres and radii of the spheres, one entry per sphere. At float precision only the float copies are kept, and they
+    // are only used to find which sphere a ray hits first, the hit itself always comes from the exact sphere
+    private final double[] centreX, centreY, centreZ;
+    private final double[] radius;
+    private final float[] floatCentreX, floatCentreY, floatCentreZ;
+    private final float[] floatRadius;
+    private final boolean floats;
+    private final int count;
+
+    // Index into materials of the sphere that supplies the shading properties for each entry
+    private final int[] materialIndex;
+    private final Sphere[] materials;
+
+    // Constants precomputed for the kernels, at float precision the square is worked out in the kernel instead
+    private final double[] radiusSquared;
+
+    public SphereSet(List<Sphere> spheres, Precision precision) {
+        count = spheres.size();
+        floats = precision == Precision.FLOAT;
+        centreX = floats ? null : new double[count];
+        centreY = floats ? null : new double[count];
+        centreZ = floats ? null : new double[count];
+        radius = floats ? null : new double[count];
+        floatCentreX = floats ? new float[count] : null;
+        floatCentreY = floats ? new float[count] : null;
+        floatCentreZ = floats ? new float[count] : null;
+        floatRadius = floats ? new float[count] : null;
+        radiusSquared = floats ? null : new double[count];
+        materialIndex = new int[count];
+        materials = spheres.toArray(new Sphere[0]);
+
+        for (int i = 0; i < count; i++) {
+            Sphere sphere = materials[i];
+            if (floats) {
+                floatCentreX[i] = (float) sphere.getPosition().x;
+                floatCentreY[i] = (float) sphere.getPosition().y;
+                floatCentreZ[i] = (float) sphere.getPosition().z;
+                floatRadius[i] = (float) sphere.getRadius();
+            } else {
+                centreX[i] = sphere.getPosition().x;
+                centreY[i] = sphere.getPosition().y;
+                centreZ[i] = sphere.getPosition().z;
+                radius[i] = sphere.getRadius();
+                radiusSquared[i] = radius[i] * radius[i];
+            }
+            materialIndex[i] = i;
+        }
+        computeBounds();
+    }
+
+    public int size() {
+        return count;
+    }
+
+    // Every sphere is tested
+    @Override
+    public long getIntersectionCost() {
+        return count;
+    }
+
+    private double centreX(int i) {
+        return floats ? floatCentreX[i] : centreX[i];
+    }
+
+    private double centreY(int i) {
+        return floats ? floatCentreY[i] : centreY[i];
+    }
+
+    private double centreZ(int i) {
+        return floats ? floatCentreZ[i] : centreZ[i];
+    }
+
+    private double radius(int i) {
+        return floats ? floatRadius[i] : radius[i];
+    }
+
+    // Bound the set by a sphere around the average centre
+    private void computeBounds() {
+        double sumX = 0, sumY = 0, sumZ = 0;
+        for (int i = 0; i < count; i++) {
+            sumX += centreX(i);
+            sumY += centreY(i);
+            sumZ += centreZ(i);
+        }
+        boundingCentre = new Vector3(sumX / count, sumY / count, sumZ / count);
+        boundingRadius = 0;
+        for (int i = 0; i < count; i++) {
+            Vector3 C = new Vector3(centreX(i), centreY(i), centreZ(i));
+            boundingRadius = Math.max(boundingRadius, C.subtract(boundingCentre).magnitude() + radius(i));
+        }
+    }
+
+    // Intersect the ray with every sphere, keeping the closest non-negative intersection
+    @Override
+    public RaycastHit intersectionWith(Ray ray) {
+        Vector3 O = ray.getOrigin();
+        Vector3 D = ray.getDirection();
+        double ox = O.x, oy = O.y, oz = O.z;
+        double dx = D.x, dy = D.y, dz = D.z;
+        double a = dx * dx + dy * dy + dz * dz;
+        float fox = (float) ox, foy = (float) oy, foz = (float) oz;
+        float fdx = (float) dx, fdy = (float) dy, fdz = (float) dz;
+
+        double closestS = Double.POSITIVE_INFINITY;
+        int closest = -1;
+        for (int i = 0; i < count; i++) {
+            double s = floats ? intersectFloat(i, fox, foy, foz, fdx, fdy, fdz, (float) a) : intersect(i, ox, oy, oz, dx, dy, dz, a);
+            if (s < closestS) {
+                closestS = s;
+                closest = i;
+            }
+        }
+
+        if (closest < 0) {
+            return new RaycastHit();
+        }
+        // only the closest sphere needs a full hit with location and normal
+        return refine(ray, closest);
+    }
+
+    /*
+     * The full hit on sphere i, worked out exactly from the sphere itself. At float precision a ray leaving a sphere's
+     * surface can still seem to touch it, in which case the exact sphere is missed and every sphere is tested again exactly
+     */
+    private RaycastHit refine(Ray ray, int i) {
+        RaycastHit hit = materials[materialIndex[i]].intersectionWith(ray);
+        if (!floats || hit.getObjectHit() != null) {
+            return hit;
+        }
+        RaycastHit closest = new RaycastHit();
+        for (Sphere sphere : materials) {
+            RaycastHit candidate = sphere.intersectionWith(ray);
+            if (candidate.getDistance() < closest.getDistance()) {
+                closest = candidate;
+            }
+        }
+        return closest;
+    }
+
+    // Test each sphere against the whole packet at once, with the rays in the inner loop so the sphere stays in registers
+    @Override
+    public void intersectPacket(RayPacket packet) {
+        int size = packet.size();
+        double[] closestS = new double[size];
+        int[] closest = new int[size];
+        double[] a = new double[size];
+        for (int j = 0; j < size; j++) {
+            closestS[j] = packet.getHitDistance(j);
+            closest[j] = -1;
+            a[j] = packet.directionX[j] * packet.directionX[j] + packet.directionY[j] * packet.directionY[j] + packet.directionZ[j] * packet.directionZ[j];
+        }
+
+        if (floats) {
+            intersectPacketFloat(packet, closestS, closest, a);
+        } else {
+            for (int i = 0; i < count; i++) {
+                for (int j = 0; j < size; j++) {
+                    double s = intersect(i, packet.originX[j], packet.originY[j], packet.originZ[j],
+                            packet.directionX[j], packet.directionY[j], packet.directionZ[j], a[j]);
+                    if (s < closestS[j]) {
+                        closestS[j] = s;
+                        closest[j] = i;
+                    }
+                }
+            }
+        }
+
+        for (int j = 0; j < size; j++) {
+            if (closest[j] >= 0) {
+                packet.offerHit(j, refine(packet.getRay(j), closest[j]));
+            }
+        }
+    }
+
+    // The same loop on float copies of the rays, converted once rather than for every sphere
+    private void intersectPacketFloat(RayPacket packet, double[] closestS, int[] closest, double[] a) {
+        int size = packet.size();
+        float[] ox = new float[size], oy = new float[size], oz = new float[size];
+        float[] dx = new float[size], dy = new float[size], dz = new float[size];
+        float[] fa = new float[size];
+        for (int j = 0; j < size; j++) {
+            ox[j] = (float) packet.originX[j];
+            oy[j] = (float) packet.originY[j];
+            oz[j] = (float) packet.originZ[j];
+            dx[j] = (float) packet.directionX[j];
+            dy[j] = (float) packet.directionY[j];
+            dz[j] = (float) packet.directionZ[j];
+            fa[j] = (float) a[j];
+        }
+
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < size; j++) {
+                double s = intersectFloat(i, ox[j], oy[j], oz[j], dx[j], dy[j], dz[j], fa[j]);
+                if (s < closestS[j]) {
+                    closestS[j] = s;
+                    closest[j] = i;
+                }
+            }
+        }
+    }
+
+    /*
+     * Distance along the ray to sphere i, or infinity if it is missed or behind the ray.
+     * This is the same quadratic as Sphere.intersectionWith, using half of b to save some multiplications.
+     */
+    private double intersect(int i, double ox, double oy, double oz, double dx, double dy, double dz, double a) {
+        double cox = ox - centreX[i];
+        double coy = oy - centreY[i];
+        double coz = oz - centreZ[i];
+
+        double halfB = dx * cox + dy * coy + dz * coz;
+        double c = cox * cox + coy * coy + coz * coz - radiusSquared[i];
+        double disc = halfB * halfB - a * c;
+        if (disc < 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        // a is positive so intersect1 <= intersect2, take the first one in front of the ray
+        double sqrtDisc = Math.sqrt(disc);
+        double intersect1 = (-halfB - sqrtDisc) / a;
+        double intersect2 = (-halfB + sqrtDisc) / a;
+        if (intersect1 >= 0) {
+            return intersect1;
+        }
+        return intersect2 >= 0 ? intersect2 : Double.POSITIVE_INFINITY;
+    }
+
+    // As above entirely in floats, only good enough to pick the closest sphere, whose hit is then found exactly
+    private double intersectFloat(int i, float ox, float oy, float oz, float dx, float dy, float dz, float a) {
+        float cox = ox - floatCentreX[i];
+        float coy = oy - floatCentreY[i];
+        float coz = oz - floatCentreZ[i];
+        float r = floatRadius[i];
+
+        float halfB = dx * cox + dy * coy + dz * coz;
+        float c = cox * cox + coy * coy + coz * coz - r * r;
+        float disc = halfB * halfB - a * c;
+        if (disc < 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        float sqrtDisc = (float) Math.sqrt(disc);
+        float intersect1 = (-halfB - sqrtDisc) / a;
+        float intersect2 = (-halfB + sqrtDisc) / a;
+        if (intersect1 >= 0) {
+            return intersect1;
+        }
+        return intersect2 >= 0 ? intersect2 : Double.POSITIVE_INFINITY;
+    }
+
+    // Every sphere the shadow ray passes through filters the light, not just the closest one
+    @Override
+    public ColorRGB filterTransmittance(Ray ray, double maxDistance, ColorRGB transmittance, Collection<SceneObject> blockers) {
+        Vector3 O = ray.getOrigin();
+        Vector3 D = ray.getDirection();
+        double a = D.dot(D);
+        float fox = (float) O.x, foy = (float) O.y, foz = (float) O.z;
+        float fdx = (float) D.x, fdy = (float) D.y, fdz = (float) D.z;
+
+        for (int i = 0; i < count; i++) {
+            double s = floats ? intersectFloat(i, fox, foy, foz, fdx, fdy, fdz, (float) a) : intersect(i, O.x, O.y, O.z, D.x, D.y, D.z, a);
+            if (s > 0 && s < maxDistance) {
+                Sphere sphere = materials[materialIndex[i]];
+                if (floats && sphere.intersectionWith(ray).getDistance() >= maxDistance) {
+                    continue; // only touched after rounding
+                }
+                transmittance = transmittance.scale(sphere.getTransmittance());
+                if (blockers != null) {
+                    blockers.add(sphere);
+                }
+            }
+        }
+        return transmittance;
+    }
+}
@@ -0,0 +1,8 @@
+package uk.ac.cam.cl.bdt29.elements;
+
+public class SurfaceRecord {
+    // Where a point is on an object's surface, in the coordinates the object maps its texture with. Callers keep one and
+    // pass it to SceneObject.getSurfaceCoordinates to be filled in, so looking up a texture allocates nothing
+
+    public double u, v;
+}
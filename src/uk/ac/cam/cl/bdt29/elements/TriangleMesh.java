@@ -0,0 +1,492 @@
+package uk.ac.cam.cl.bdt29.elements;
+
+import uk.ac.cam.cl.bdt29.Precision;
+import uk.ac.cam.cl.bdt29.Ray;
+import uk.ac.cam.cl.bdt29.RaycastHit;
+import uk.ac.cam.cl.bdt29.data_structures.ColorRGB;
+import uk.ac.cam.cl.bdt29.data_structures.Transform;
+import uk.ac.cam.cl.bdt29.data_structures.Vector3;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class TriangleMesh extends SceneObject {
+    // A triangle mesh loaded from a Wavefront OBJ file. Everything is kept in flat arrays of primitives rather than objects,
+    // with a bounding volume hierarchy over the triangles so that a ray only tests the few near it
+
+    public static final double DEFAULT_MESH_KD = 0.8;
+    public static final double DEFAULT_MESH_KS = 0.2;
+    public static final double DEFAULT_MESH_ALPHA = 10;
+    public static final double DEFAULT_MESH_REFLECTIVITY = 0;
+
+    // The most triangles kept in one leaf of the hierarchy
+    private static final int MAX_LEAF_SIZE = 4;
+
+    // x, y, z of each vertex in world space, and of each vertex normal if the file has them. At float precision these are
+    // rounded to floats once the hierarchy is built and the doubles are dropped, halving what a ray reads from memory
+    private double[] positions;
+    private double[] normals;
+    private float[] floatPositions;
+    private float[] floatNormals;
+    private boolean floats;
+    private int vertexCount, normalCount;
+
+    // Three vertex indices per triangle, and three normal indices if there are normals, in the order of the hierarchy's leaves
+    private int[] indices;
+    private int[] normalIndices;
+    private int triangleCount;
+
+    // The hierarchy, one entry per node: min x, y, z then max x, y, z of its box in bounds, and for a leaf the first triangle
+    // and the number of triangles, or for an inner node the index of the first of its two children (which sit next to
+    // each other) and a count of 0
+    private double[] nodeBounds;
+    private float[] floatNodeBounds;
+    private int[] nodeStart;
+    private int[] nodeCount;
+    private int nodeTotal;
+
+    public TriangleMesh(String filename, Vector3 translation, Vector3 rotation, double scale, ColorRGB colour, double kD, double kS, double alphaS, double reflectivity, Precision precision) {
+        this.material = new Material(colour, kD, kS, alphaS, reflectivity);
+
+        loadObj(filename);
+        transform(translation, Transform.rotation(rotation), scale);
+        buildHierarchy();
+        if (precision == Precision.FLOAT) {
+            roundToFloats();
+        }
+        computeBounds();
+    }
+
+    // Read the vertices, normals and faces of an OBJ file, splitting polygons into fans of triangles. Everything else is ignored
+    private void loadObj(String filename) {
+        positions = new double[3 * 1024];
+        normals = new double[3 * 1024];
+        indices = new int[3 * 1024];
+        normalIndices = new int[3 * 1024];
+        boolean faceNormals = true;
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                String[] parts = line.trim().split("\\s+");
+                try {
+                    switch (parts[0]) {
+                        case "v":
+                            positions = ensureCapacity(positions, 3 * vertexCount + 3);
+                            for (int i = 0; i < 3; i++) {
+                                positions[3 * vertexCount + i] = Double.parseDouble(parts[i + 1]);
+                            }
+                            vertexCount++;
+                            break;
+
+                        case "vn":
+                            normals = ensureCapacity(normals, 3 * normalCount + 3);
+                            for (int i = 0; i < 3; i++) {
+                                normals[3 * normalCount + i] = Double.parseDouble(parts[i + 1]);
+                            }
+                            normalCount++;
+                            break;
+
+                        case "f":
+                            int corners = parts.length - 1;
+                            if (corners < 3) {
+                                throw new RuntimeException("face with fewer than 3 vertices");
+                            }
+                            int[] vertex = new int[corners];
+                            int[] normal = new int[corners];
+                            for (int i = 0; i < corners; i++) {
+                                // each corner is v, v/vt, v//vn or v/vt/vn, and negative indices count back from the end
+                                String[] refs = parts[i + 1].split("/");
+                                vertex[i] = resolveIndex(Integer.parseInt(refs[0]), vertexCount);
+                                if (refs.length == 3 && !refs[2].isEmpty()) {
+                                    normal[i] = resolveIndex(Integer.parseInt(refs[2]), normalCount);
+                                } else {
+                                    faceNormals = false;
+                                }
+                            }
+                            for (int i = 1; i < corners - 1; i++) {
+                                indices = ensureCapacity(indices, 3 * triangleCount + 3);
+                                normalIndices = ensureCapacity(normalIndices, 3 * triangleCount + 3);
+                                int[] fan = {0, i, i + 1};
+                                for (int j = 0; j < 3; j++) {
+                                    indices[3 * triangleCount + j] = vertex[fan[j]];
+                                    normalIndices[3 * triangleCount + j] = normal[fan[j]];
+                                }
+                                triangleCount++;
+                            }
+                            break;
+                    }
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    throw new RuntimeException("error in mesh " + filename + " on line " + lineNumber + ": " + line);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("error reading mesh:\n" + e.getMessage());
+        }
+        if (triangleCount == 0) {
+            throw new RuntimeException("mesh has no faces: " + filename);
+        }
+
+        positions = Arrays.copyOf(positions, 3 * vertexCount);
+        indices = Arrays.copyOf(indices, 3 * triangleCount);
+        // only smooth the normals if every face has them
+        if (faceNormals && normalCount > 0) {
+            normals = Arrays.copyOf(normals, 3 * normalCount);
+            normalIndices = Arrays.copyOf(normalIndices, 3 * triangleCount);
+        } else {
+            normals = null;
+            normalIndices = null;
+        }
+    }
+
+    private static double[] ensureCapacity(double[] array, int size) {
+        return size <= array.length ? array : Arrays.copyOf(array, Math.max(size, 2 * array.length));
+    }
+
+    private static int[] ensureCapacity(int[] array, int size) {
+        return size <= array.length ? array : Arrays.copyOf(array, Math.max(size, 2 * array.length));
+    }
+
+    // OBJ indices start at 1, and negative ones are relative to the end of the list so far
+    private static int resolveIndex(int index, int count) {
+        int resolved = index > 0 ? index - 1 : count + index;
+        if (resolved < 0 || resolved >= count) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        return resolved;
+    }
+
+    // Move the mesh into world space once, so rays never have to be transformed
+    private void transform(Vector3 translation, Transform rotation, double scale) {
+        Transform placement = rotation.scaled(scale).translated(translation);
+        for (int i = 0; i < vertexCount; i++) {
+            placement.applyToPoint(positions, 3 * i);
+        }
+        if (normals != null) {
+            for (int i = 0; i < normalCount; i++) {
+                rotation.applyToVector(normals, 3 * i);
+                double length = Math.sqrt(normals[3 * i] * normals[3 * i] + normals[3 * i + 1] * normals[3 * i + 1]
+                        + normals[3 * i + 2] * normals[3 * i + 2]);
+                normals[3 * i] /= length;
+                normals[3 * i + 1] /= length;
+                normals[3 * i + 2] /= length;
+            }
+        }
+    }
+
+    /*
+     * Build the hierarchy by splitting the triangles in half by their centroids along the longest axis of the node,
+     * then put the triangles in leaf order so that each leaf's triangles are next to each other in memory
+     */
+    private void buildHierarchy() {
+        double[] centroids = new double[3 * triangleCount];
+        for (int t = 0; t < triangleCount; t++) {
+            for (int axis = 0; axis < 3; axis++) {
+                centroids[3 * t + axis] = (positions[3 * indices[3 * t] + axis] + positions[3 * indices[3 * t + 1] + axis]
+                        + positions[3 * indices[3 * t + 2] + axis]) / 3;
+            }
+        }
+        int[] order = new int[triangleCount];
+        for (int t = 0; t < triangleCount; t++) {
+            order[t] = t;
+        }
+
+        // a binary tree with leaves of at least one triangle has fewer than 2n nodes
+        int maxNodes = Math.max(1, 2 * triangleCount - 1);
+        nodeBounds = new double[6 * maxNodes];
+        nodeStart = new int[maxNodes];
+        nodeCount = new int[maxNodes];
+        nodeTotal = 1;
+        buildNode(0, 0, triangleCount, order, centroids);
+
+        nodeBounds = Arrays.copyOf(nodeBounds, 6 * nodeTotal);
+        nodeStart = Arrays.copyOf(nodeStart, nodeTotal);
+        nodeCount = Arrays.copyOf(nodeCount, nodeTotal);
+
+        int[] sortedIndices = new int[3 * triangleCount];
+        int[] sortedNormalIndices = normalIndices == null ? null : new int[3 * triangleCount];
+        for (int t = 0; t < triangleCount; t++) {
+            System.arraycopy(indices, 3 * order[t], sortedIndices, 3 * t, 3);
+            if (normalIndices != null) {
+                System.arraycopy(normalIndices, 3 * order[t], sortedNormalIndices, 3 * t, 3);
+            }
+        }
+        indices = sortedIndices;
+        normalIndices = sortedNormalIndices;
+    }
+
+    private void buildNode(int node, int start, int end, int[] order, double[] centroids) {
+        double[] box = nodeBounds;
+        int b = 6 * node;
+        box[b] = box[b + 1] = box[b + 2] = Double.POSITIVE_INFINITY;
+        box[b + 3] = box[b + 4] = box[b + 5] = Double.NEGATIVE_INFINITY;
+        double[] centroidMin = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+        double[] centroidMax = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (int i = start; i < end; i++) {
+            int t = order[i];
+            for (int corner = 0; corner < 3; corner++) {
+                int v = 3 * indices[3 * t + corner];
+                for (int axis = 0; axis < 3; axis++) {
+                    box[b + axis] = Math.min(box[b + axis], positions[v + axis]);
+                    box[b + 3 + axis] = Math.max(box[b + 3 + axis], positions[v + axis]);
+                }
+            }
+            for (int axis = 0; axis < 3; axis++) {
+                centroidMin[axis] = Math.min(centroidMin[axis], centroids[3 * t + axis]);
+                centroidMax[axis] = Math.max(centroidMax[axis], centroids[3 * t + axis]);
+            }
+        }
+
+        int axis = 0;
+        for (int a = 1; a < 3; a++) {
+            if (centroidMax[a] - centroidMin[a] > centroidMax[axis] - centroidMin[axis]) {
+                axis = a;
+            }
+        }
+        // all the centroids in one place can't be split any further
+        if (end - start <= MAX_LEAF_SIZE || centroidMax[axis] == centroidMin[axis]) {
+            nodeStart[node] = start;
+            nodeCount[node] = end - start;
+            return;
+        }
+
+        int middle = (start + end) / 2;
+        select(order, centroids, axis, start, end - 1, middle);
+
+        int left = nodeTotal;
+        nodeTotal += 2;
+        nodeStart[node] = left;
+        nodeCount[node] = 0;
+        buildNode(left, start, middle, order, centroids);
+        buildNode(left + 1, middle, end, order, centroids);
+    }
+
+    // Partially sort order[low..high] so that the k-th triangle by centroid along axis is in place, with smaller ones before it
+    private static void select(int[] order, double[] centroids, int axis, int low, int high, int k) {
+        while (low < high) {
+            double pivot = centroids[3 * order[(low + high) >>> 1] + axis];
+            int i = low, j = high;
+            while (i <= j) {
+                while (centroids[3 * order[i] + axis] < pivot) i++;
+                while (centroids[3 * order[j] + axis] > pivot) j--;
+                if (i <= j) {
+                    int swap = order[i];
+                    order[i] = order[j];
+                    order[j] = swap;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                high = j;
+            } else if (k >= i) {
+                low = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /*
+     * Replace the arrays with float copies. A vertex shared by two triangles is rounded the same way in both, so the mesh
+     * stays watertight, and the boxes are rounded outwards so they still contain their rounded triangles
+     */
+    private void roundToFloats() {
+        floatPositions = new float[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            floatPositions[i] = (float) positions[i];
+        }
+        if (normals != null) {
+            floatNormals = new float[normals.length];
+            for (int i = 0; i < normals.length; i++) {
+                floatNormals[i] = (float) normals[i];
+            }
+        }
+        floatNodeBounds = new float[nodeBounds.length];
+        for (int node = 0; node < nodeTotal; node++) {
+            for (int axis = 0; axis < 3; axis++) {
+                floatNodeBounds[6 * node + axis] = roundDown(nodeBounds[6 * node + axis]);
+                floatNodeBounds[6 * node + 3 + axis] = roundUp(nodeBounds[6 * node + 3 + axis]);
+            }
+        }
+        positions = null;
+        normals = null;
+        nodeBounds = null;
+        floats = true;
+    }
+
+    private static float roundDown(double value) {
+        float rounded = (float) value;
+        return rounded > value ? Math.nextDown(rounded) : rounded;
+    }
+
+    private static float roundUp(double value) {
+        float rounded = (float) value;
+        return rounded < value ? Math.nextUp(rounded) : rounded;
+    }
+
+    private double position(int i) {
+        return floats ? floatPositions[i] : positions[i];
+    }
+
+    private double normal(int i) {
+        return floats ? floatNormals[i] : normals[i];
+    }
+
+    private double bound(int i) {
+        return floats ? floatNodeBounds[i] : nodeBounds[i];
+    }
+
+    // Bound the mesh by the sphere around the root box of the hierarchy
+    private void computeBounds() {
+        Vector3 min = new Vector3(bound(0), bound(1), bound(2));
+        Vector3 max = new Vector3(bound(3), bound(4), bound(5));
+        boundingCentre = min.add(max).scale(0.5);
+        boundingRadius = max.subtract(min).magnitude() / 2;
+    }
+
+    public int getTriangleCount() {
+        return triangleCount;
+    }
+
+    @Override
+    public RaycastHit intersectionWith(Ray ray) {
+        Vector3 O = ray.getOrigin();
+        Vector3 D = ray.getDirection();
+        double[] origin = {O.x, O.y, O.z};
+        double[] direction = {D.x, D.y, D.z};
+        double[] inverse = {1 / D.x, 1 / D.y, 1 / D.z};
+
+        // the watertight test shears the ray onto the z axis, using the largest component of the direction as z
+        int kz = Math.abs(D.x) > Math.abs(D.y) ? (Math.abs(D.x) > Math.abs(D.z) ? 0 : 2) : (Math.abs(D.y) > Math.abs(D.z) ? 1 : 2);
+        int kx = (kz + 1) % 3;
+        int ky = (kx + 1) % 3;
+        if (direction[kz] < 0) {
+            // keep the winding the same
+            int swap = kx;
+            kx = ky;
+            ky = swap;
+        }
+        double Sx = direction[kx] / direction[kz];
+        double Sy = direction[ky] / direction[kz];
+        double Sz = 1 / direction[kz];
+
+        double closest = Double.POSITIVE_INFINITY;
+        int closestTriangle = -1;
+        double closestU = 0, closestV = 0, closestW = 0;
+
+        int[] stack = new int[64];
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+        while (stackSize > 0) {
+            int node = stack[--stackSize];
+            if (!hitsBox(node, origin, inverse, closest)) {
+                continue;
+            }
+            if (nodeCount[node] == 0) {
+                stack[stackSize++] = nodeStart[node];
+                stack[stackSize++] = nodeStart[node] + 1;
+                continue;
+            }
+
+            for (int t = nodeStart[node]; t < nodeStart[node] + nodeCount[node]; t++) {
+                int a = 3 * indices[3 * t], b = 3 * indices[3 * t + 1], c = 3 * indices[3 * t + 2];
+
+                // the vertices relative to the ray origin, sheared so the ray runs along z
+                double Az = position(a + kz) - origin[kz];
+                double Bz = position(b + kz) - origin[kz];
+                double Cz = position(c + kz) - origin[kz];
+                double Ax = position(a + kx) - origin[kx] - Sx * Az;
+                double Ay = position(a + ky) - origin[ky] - Sy * Az;
+                double Bx = position(b + kx) - origin[kx] - Sx * Bz;
+                double By = position(b + ky) - origin[ky] - Sy * Bz;
+                double Cx = position(c + kx) - origin[kx] - Sx * Cz;
+                double Cy = position(c + ky) - origin[ky] - Sy * Cz;
+
+                // edge functions, a ray through an edge shared by two triangles is counted by exactly one of them
+                double U = Cx * By - Cy * Bx;
+                double V = Ax * Cy - Ay * Cx;
+                double W = Bx * Ay - By * Ax;
+                if ((U < 0 || V < 0 || W < 0) && (U > 0 || V > 0 || W > 0)) {
+                    continue;
+                }
+                double det = U + V + W;
+                if (det == 0) {
+                    continue;
+                }
+
+                double T = Sz * (U * Az + V * Bz + W * Cz);
+                double distance = T / det;
+                if (distance <= 0 || distance >= closest) {
+                    continue;
+                }
+                closest = distance;
+                closestTriangle = t;
+                closestU = U / det;
+                closestV = V / det;
+                closestW = W / det;
+            }
+        }
+
+        if (closestTriangle < 0) {
+            return new RaycastHit();
+        }
+
+        Vector3 intersectionPoint = ray.evaluateAt(closest);
+        Vector3 normal = getTriangleNormal(closestTriangle, closestU, closestV, closestW);
+        // like the inside of a sphere, the normal faces the side the ray came from
+        if (normal.dot(D) > 0) {
+            normal = normal.scale(-1);
+        }
+        return new RaycastHit(this, closest, intersectionPoint, normal);
+    }
+
+    // A ray goes down about two boxes for each level of the hierarchy and then tests the triangles of a leaf or two
+    @Override
+    public long getIntersectionCost() {
+        return 2 * (32 - Integer.numberOfLeadingZeros(triangleCount)) + 2 * MAX_LEAF_SIZE;
+    }
+
+    /*
+     * The slab test against a node's box, ignoring boxes that start further away than the closest hit so far. A ray
+     * parallel to an axis that starts on one of the box's planes gives 0 * infinity = NaN for that plane, so the
+     * comparisons are written to drop NaNs rather than let them through to near and far
+     */
+    private boolean hitsBox(int node, double[] origin, double[] inverse, double closest) {
+        double near = 0, far = closest;
+        int b = 6 * node;
+        for (int axis = 0; axis < 3; axis++) {
+            double t1 = (bound(b + axis) - origin[axis]) * inverse[axis];
+            double t2 = (bound(b + 3 + axis) - origin[axis]) * inverse[axis];
+            double entry = t1 < t2 ? t1 : t2;
+            double exit = t1 < t2 ? t2 : t1;
+            if (entry > near) {
+                near = entry;
+            }
+            if (exit < far) {
+                far = exit;
+            }
+        }
+        return !(near > far);
+    }
+
+    // The smooth normal from the barycentric weights if the mesh has vertex normals, otherwise the flat normal of the face
+    private Vector3 getTriangleNormal(int t, double u, double v, double w) {
+        if (normalIndices != null) {
+            int a = 3 * normalIndices[3 * t], b = 3 * normalIndices[3 * t + 1], c = 3 * normalIndices[3 * t + 2];
+            return new Vector3(
+                    u * normal(a) + v * normal(b) + w * normal(c),
+                    u * normal(a + 1) + v * normal(b + 1) + w * normal(c + 1),
+                    u * normal(a + 2) + v * normal(b + 2) + w * normal(c + 2)).normalised();
+        }
+        int a = 3 * indices[3 * t], b = 3 * indices[3 * t + 1], c = 3 * indices[3 * t + 2];
+        Vector3 A = new Vector3(position(a), position(a + 1), position(a + 2));
+        Vector3 edge1 = new Vector3(position(b), position(b + 1), position(b + 2)).subtract(A);
+        Vector3 edge2 = new Vector3(position(c), position(c + 1), position(c + 2)).subtract(A);
+        return edge1.cross(edge2).normalised();
+    }
+}